@@ -0,0 +1,226 @@
+package com.minz.midi;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes the bit-packed fields of recovery journal chapters
+ * (RFC 6295 appendix A) in a byte array: single flag bits, the 4 and 10 bit
+ * fields of journal and chapter headers, 7-bit values behind a flag bit and
+ * the OFFBITS bitfield. Fields are most significant bit first, as in the
+ * RFC.
+ * <p>
+ * Unlike {@link KaitaiStream#readBitsInt}, which loops over bytes and
+ * builds a mask for every field, each width has its own straight line of
+ * shifts, and a field that starts on a byte boundary is a single array
+ * access. Bounds are only those of the array; the journal code checks the
+ * room a chapter needs before writing it.
+ */
+public final class BitCursor {
+    private byte[] buf;
+    // index of the byte holding the next bit
+    private int pos;
+    // bits of that byte already read or written, 0 to 7
+    private int bit;
+
+    /**
+     * Points the cursor at the given byte of an array.
+     */
+    public BitCursor reset(byte[] buf, int pos) {
+        this.buf = buf;
+        this.pos = pos;
+        bit = 0;
+        return this;
+    }
+
+    /**
+     * Points the cursor at the position of an array-backed buffer.
+     */
+    public BitCursor reset(ByteBuffer buffer) {
+        return reset(buffer.array(), buffer.arrayOffset() + buffer.position());
+    }
+
+    /** @return index of the next whole byte, past a partly used one */
+    public int position() {
+        return bit == 0 ? pos : pos + 1;
+    }
+
+    /**
+     * Moves to a byte boundary of the array, for fields whose value is only
+     * known later, like a LENGTH.
+     */
+    public void seek(int pos) {
+        this.pos = pos;
+        bit = 0;
+    }
+
+    public void skip(int bytes) {
+        pos = position() + bytes;
+        bit = 0;
+    }
+
+    //region Reading
+
+    public boolean readFlag() {
+        boolean flag = ((buf[pos] << bit) & 0x80) != 0;
+        advance(1);
+        return flag;
+    }
+
+    public int readU4() {
+        int v = bit <= 4 ? get8(4 - bit, 0x0F) : get16(12 - bit, 0x0F);
+        advance(4);
+        return v;
+    }
+
+    /**
+     * Reads a 7-bit value; a flag bit in front of it is read with
+     * {@link #readFlag}, or both at once with {@link #readU8}.
+     */
+    public int readU7() {
+        int v = bit <= 1 ? get8(1 - bit, 0x7F) : get16(9 - bit, 0x7F);
+        advance(7);
+        return v;
+    }
+
+    /** @return a whole octet, such as a flag and 7-bit value, as 0 to 255 */
+    public int readU8() {
+        int v = bit == 0 ? buf[pos] & 0xFF : get16(8 - bit, 0xFF);
+        pos++;
+        return v;
+    }
+
+    public int readU10() {
+        int v = bit <= 6 ? get16(6 - bit, 0x03FF) : get24(14 - bit, 0x03FF);
+        advance(10);
+        return v;
+    }
+
+    public int readU16() {
+        int v = bit == 0 ? get16(0, 0xFFFF) : get24(8 - bit, 0xFFFF);
+        pos += 2;
+        return v;
+    }
+
+    //endregion
+
+    //region Writing
+
+    public void writeFlag(boolean flag) {
+        int mask = 0x80 >> bit;
+        buf[pos] = (byte) (flag ? buf[pos] | mask : buf[pos] & ~mask);
+        advance(1);
+    }
+
+    public void writeU4(int v) {
+        if (bit <= 4) {
+            put8(4 - bit, 0x0F, v);
+        } else {
+            put16(12 - bit, 0x0F, v);
+        }
+        advance(4);
+    }
+
+    public void writeU7(int v) {
+        if (bit <= 1) {
+            put8(1 - bit, 0x7F, v);
+        } else {
+            put16(9 - bit, 0x7F, v);
+        }
+        advance(7);
+    }
+
+    /**
+     * Writes a flag and 7-bit value octet, the flag given as 0 or 0x80.
+     */
+    public void writeOctet(int flag, int v) {
+        writeU8(flag | (v & 0x7F));
+    }
+
+    public void writeU8(int octet) {
+        octet &= 0xFF;
+        if (bit == 0) {
+            buf[pos] = (byte) octet;
+        } else {
+            put16(8 - bit, 0xFF, octet);
+        }
+        pos++;
+    }
+
+    public void writeU10(int v) {
+        if (bit <= 6) {
+            put16(6 - bit, 0x03FF, v);
+        } else {
+            put24(14 - bit, 0x03FF, v);
+        }
+        advance(10);
+    }
+
+    public void writeU16(int v) {
+        if (bit == 0) {
+            buf[pos] = (byte) (v >> 8);
+            buf[pos + 1] = (byte) v;
+        } else {
+            put24(8 - bit, 0xFFFF, v);
+        }
+        pos += 2;
+    }
+
+    /**
+     * Clears a run of whole bytes, as for a bitfield filled in with
+     * {@link #setBit}. The cursor must be on a byte boundary.
+     */
+    public void writeZeros(int bytes) {
+        for (int end = pos + bytes; pos < end; pos++) {
+            buf[pos] = 0;
+        }
+    }
+
+    /**
+     * Sets one bit of a bitfield, counted from the most significant bit of
+     * the byte at the given index, without moving the cursor.
+     */
+    public void setBit(int from, int index) {
+        buf[from + (index >> 3)] |= (byte) (0x80 >> (index & 7));
+    }
+
+    //endregion
+
+    // a field of the given mask, shift bits above the end of an 8, 16 or 24-bit window at pos
+
+    private int get8(int shift, int mask) {
+        return (buf[pos] >> shift) & mask;
+    }
+
+    private int get16(int shift, int mask) {
+        return ((((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF)) >> shift) & mask;
+    }
+
+    private int get24(int shift, int mask) {
+        return ((((buf[pos] & 0xFF) << 16) | ((buf[pos + 1] & 0xFF) << 8) | (buf[pos + 2] & 0xFF)) >> shift) & mask;
+    }
+
+    private void put8(int shift, int mask, int v) {
+        buf[pos] = (byte) ((buf[pos] & ~(mask << shift)) | ((v & mask) << shift));
+    }
+
+    private void put16(int shift, int mask, int v) {
+        int w = ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+        w = (w & ~(mask << shift)) | ((v & mask) << shift);
+        buf[pos] = (byte) (w >> 8);
+        buf[pos + 1] = (byte) w;
+    }
+
+    private void put24(int shift, int mask, int v) {
+        int w = ((buf[pos] & 0xFF) << 16) | ((buf[pos + 1] & 0xFF) << 8) | (buf[pos + 2] & 0xFF);
+        w = (w & ~(mask << shift)) | ((v & mask) << shift);
+        buf[pos] = (byte) (w >> 16);
+        buf[pos + 1] = (byte) (w >> 8);
+        buf[pos + 2] = (byte) w;
+    }
+
+    private void advance(int bits) {
+        bit += bits;
+        pos += bit >> 3;
+        bit &= 7;
+    }
+}
@@ -38,6 +38,23 @@ import java.nio.file.StandardOpenOption;
  * or a regular wrapper over a given byte array).
  */
 public class ByteBufferKaitaiStream extends KaitaiStream {
+    /**
+     * Number of idle streams each thread keeps for {@link #obtain}.
+     */
+    public static final int POOL_SIZE = 4;
+
+    private static final ThreadLocal<Pool> POOL = new ThreadLocal<Pool>() {
+        @Override
+        protected Pool initialValue() {
+            return new Pool();
+        }
+    };
+
+    private static final class Pool {
+        final ByteBufferKaitaiStream[] streams = new ByteBufferKaitaiStream[POOL_SIZE];
+        int count;
+    }
+
     private FileChannel fc;
     private ByteBuffer bb;
 
@@ -84,6 +101,65 @@ public class ByteBufferKaitaiStream extends KaitaiStream {
         bb = ByteBuffer.allocate((int) size);
     }
 
+    /**
+     * Takes a stream over the given buffer from the calling thread's pool,
+     * creating one if the pool is empty. Hand it back with
+     * {@link #recycle()} on the same thread once done with it.
+     * @param buffer ByteBuffer to read from or write to
+     * @return stream positioned at the buffer's position
+     */
+    public static ByteBufferKaitaiStream obtain(ByteBuffer buffer) {
+        Pool pool = POOL.get();
+        if (pool.count == 0) {
+            return new ByteBufferKaitaiStream(buffer);
+        }
+        ByteBufferKaitaiStream stream = pool.streams[--pool.count];
+        pool.streams[pool.count] = null;
+        return stream.reset(buffer);
+    }
+
+    /**
+     * Returns this stream to the calling thread's pool, dropping its
+     * buffer. The stream must not be used afterwards.
+     */
+    public void recycle() {
+        bb = null;
+        Pool pool = POOL.get();
+        if (pool.count < POOL_SIZE) {
+            pool.streams[pool.count++] = this;
+        }
+    }
+
+    /**
+     * Points this stream at another buffer, as if it was constructed on
+     * it, so one stream object can parse packet after packet.
+     * @param buffer ByteBuffer to read from or write to, from its position
+     * @return this stream
+     */
+    public ByteBufferKaitaiStream reset(ByteBuffer buffer) {
+        fc = null;
+        bb = buffer;
+        alignToByte();
+        return this;
+    }
+
+    /**
+     * Points this stream at a range of a byte array, reusing the current
+     * ByteBuffer if it already wraps that array.
+     * @param arr byte array to read from or write to
+     * @param position index of the first byte
+     * @param limit index after the last byte
+     * @return this stream
+     */
+    public ByteBufferKaitaiStream reset(byte[] arr, int position, int limit) {
+        if (bb == null || !bb.hasArray() || bb.array() != arr || bb.arrayOffset() != 0 || bb.isReadOnly()) {
+            bb = ByteBuffer.wrap(arr);
+        }
+        bb.limit(limit);
+        bb.position(position);
+        return reset(bb);
+    }
+
     /**
      * Provide a read-only version of the {@link ByteBuffer} backing the data of this instance.
      * <p>
@@ -546,6 +622,11 @@ public class ByteBufferKaitaiStream extends KaitaiStream {
         bb.put(buf);
     }
 
+    @Override
+    public void writeBytes(byte[] buf, int offset, int length) {
+        bb.put(buf, offset, length);
+    }
+
     @Override
     public void writeBytesLimit(byte[] buf, long size, byte term, byte padByte) {
         int len = buf.length;
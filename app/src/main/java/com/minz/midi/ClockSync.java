@@ -0,0 +1,180 @@
+package com.minz.midi;
+
+import java.util.Arrays;
+
+/**
+ * Estimates the offset and drift between the local media clock and the
+ * peer's from AppleMIDI CK exchanges.
+ * <p>
+ * Each exchange gives an offset sample, the local midpoint of the round
+ * trip minus the peer's timestamp, with an error bounded by half its round
+ * trip time. A window of recent samples is kept; the half with the lowest
+ * RTT is fitted with a least squares line whose slope is the drift. Drift
+ * is only fitted once the samples span {@link #MIN_DRIFT_SPAN}, before that
+ * the offset is the mean of the selected samples.
+ * <p>
+ * All times are media clock ticks (100 microseconds); offsets are local
+ * minus remote.
+ * <p>
+ * {@link #nextInterval} paces the exchanges: a burst of
+ * {@link #SYNC_BURST} quick exchanges at session start, then an interval
+ * that doubles while the estimate predicts new samples well, up to
+ * {@link #MAX_INTERVAL}, and drops back to {@link #MIN_INTERVAL} when the
+ * round trip of a sample is well above the window minimum or the sample
+ * misses the prediction.
+ */
+public class ClockSync {
+    static final int DEFAULT_WINDOW = 16;
+    static final long MIN_DRIFT_SPAN = 10 * MediaClock.TICKS_PER_SECOND;
+    // drift beyond 500 ppm is taken as a bad fit rather than a real clock
+    static final double MAX_DRIFT = 500e-6;
+    static final int SYNC_BURST = 6;
+    // intervals between exchanges, in milliseconds
+    static final long BURST_INTERVAL = 250;
+    static final long MIN_INTERVAL = 1500;
+    static final long MAX_INTERVAL = 60000;
+    // largest RTT above the window minimum and prediction error, in ticks, for a stable estimate
+    static final long STABLE_RTT_EXCESS = 10;
+    static final double STABLE_ERROR = 5;
+
+    private final long[] times;
+    private final double[] offsets;
+    private final long[] rtts;
+    private final long[] sorted;
+    private int count;
+    private int next;
+    private long samples;
+
+    private long referenceTime;
+    private double referenceOffset;
+    private double drift;
+    private long rtt;
+    private long minRtt;
+    private double jitter;
+    private boolean stable;
+    private long interval = MIN_INTERVAL;
+
+    public ClockSync() {
+        this(DEFAULT_WINDOW);
+    }
+
+    public ClockSync(int window) {
+        times = new long[window];
+        offsets = new double[window];
+        rtts = new long[window];
+        sorted = new long[window];
+    }
+
+    /**
+     * Adds the result of a CK exchange.
+     * @param timestamp1 local time the CK with count 0 was sent
+     * @param timestamp2 peer time it was answered
+     * @param timestamp3 local time the answer arrived
+     * @return false if the sample was rejected
+     */
+    public synchronized boolean addSample(long timestamp1, long timestamp2, long timestamp3) {
+        long sampleRtt = timestamp3 - timestamp1;
+        if (sampleRtt < 0) {
+            return false;
+        }
+        if (samples > 0) {
+            // RFC 3550 style interarrival jitter, applied to the round trip
+            jitter += (Math.abs(sampleRtt - rtt) - jitter) / 16;
+        }
+        rtt = sampleRtt;
+        long time = timestamp1 + sampleRtt / 2;
+        double sampleOffset = timestamp1 + sampleRtt / 2.0 - timestamp2;
+        // the sample may be off by up to half its round trip, beyond that the estimate is off
+        double error = samples > 0 ? Math.abs(sampleOffset - offset(time)) - sampleRtt / 2.0 : 0;
+        stable = samples > 0 && sampleRtt - Math.min(minRtt, sampleRtt) <= STABLE_RTT_EXCESS && error <= STABLE_ERROR;
+        times[next] = time;
+        offsets[next] = sampleOffset;
+        rtts[next] = sampleRtt;
+        next = (next + 1) % times.length;
+        count = Math.min(count + 1, times.length);
+        samples++;
+        estimate(time);
+        return true;
+    }
+
+    private void estimate(long now) {
+        System.arraycopy(rtts, 0, sorted, 0, count);
+        Arrays.sort(sorted, 0, count);
+        minRtt = sorted[0];
+        long threshold = sorted[(count - 1) / 2];
+
+        int n = 0;
+        double sumX = 0;
+        double sumY = 0;
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            if (rtts[i] <= threshold) {
+                n++;
+                sumX += times[i] - now;
+                sumY += offsets[i];
+                first = Math.min(first, times[i]);
+                last = Math.max(last, times[i]);
+            }
+        }
+        double meanX = sumX / n;
+        double meanY = sumY / n;
+        double slope = 0;
+        if (n >= 3 && last - first >= MIN_DRIFT_SPAN) {
+            double sxx = 0;
+            double sxy = 0;
+            for (int i = 0; i < count; i++) {
+                if (rtts[i] <= threshold) {
+                    double dx = times[i] - now - meanX;
+                    sxx += dx * dx;
+                    sxy += dx * (offsets[i] - meanY);
+                }
+            }
+            slope = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, sxy / sxx));
+        }
+        drift = slope;
+        referenceTime = now;
+        referenceOffset = meanY - slope * meanX;
+    }
+
+    /**
+     * @return milliseconds to wait before the next CK exchange
+     */
+    public synchronized long nextInterval() {
+        if (samples < SYNC_BURST) {
+            return BURST_INTERVAL;
+        }
+        interval = stable ? Math.min(interval * 2, MAX_INTERVAL) : MIN_INTERVAL;
+        return interval;
+    }
+
+    /** @return true once at least one exchange has completed */
+    public synchronized boolean isSynced() { return samples > 0; }
+
+    /**
+     * @return estimated offset of the local clock from the peer's at the
+     * given local time, in ticks
+     */
+    public synchronized double offset(long localTime) {
+        return referenceOffset + drift * (localTime - referenceTime);
+    }
+
+    /**
+     * Maps a peer timestamp onto the local clock.
+     */
+    public synchronized long toLocal(long remoteTime) {
+        double local = remoteTime + referenceOffset;
+        return Math.round(local + drift * (local - referenceTime));
+    }
+
+    /** @return drift of the local clock against the peer's, in ticks per tick */
+    public synchronized double drift() { return drift; }
+    /** @return round trip time of the last exchange, in ticks */
+    public synchronized long rtt() { return rtt; }
+    /** @return lowest round trip time in the window, in ticks */
+    public synchronized long minRtt() { return minRtt; }
+    /** @return smoothed variation of the round trip time, in ticks */
+    public synchronized double jitter() { return jitter; }
+    public synchronized long samples() { return samples; }
+    public synchronized boolean isStable() { return stable; }
+}
@@ -0,0 +1,138 @@
+package com.minz.midi;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Flyweight view of an AppleMIDI control packet: IN, OK, NO and BY
+ * (rtpmidi.ksy), CK (timestamp.ksy) and RS (SSRC, then the 16-bit
+ * sequence number received and two bytes of padding). Fields
+ * are read straight from the buffer at their fixed offsets when asked for,
+ * so looking at a packet neither copies nor allocates; only the session
+ * name is decoded, on the first call to {@link #name}.
+ * <p>
+ * A view is re-pointed at each packet with {@link #wrap}. It reads with
+ * absolute gets and leaves the buffer's position alone.
+ */
+public class ControlPacketView {
+    public static final int SIGNATURE = 0xFFFF;
+    public static final int IN = ('I' << 8) | 'N';
+    public static final int OK = ('O' << 8) | 'K';
+    public static final int NO = ('N' << 8) | 'O';
+    public static final int BY = ('B' << 8) | 'Y';
+    public static final int CK = ('C' << 8) | 'K';
+    public static final int RS = ('R' << 8) | 'S';
+
+    // IN, OK, NO and BY
+    static final int VERSION_OFFSET = 4;
+    static final int TOKEN_OFFSET = 8;
+    static final int SESSION_SSRC_OFFSET = 12;
+    static final int NAME_OFFSET = 16;
+    // CK and RS
+    static final int SSRC_OFFSET = 4;
+    static final int COUNT_OFFSET = 8;
+    static final int TIMESTAMP1_OFFSET = 12;
+    static final int SEQNUM_OFFSET = 8;
+    static final int CK_LENGTH = 36;
+    static final int RS_LENGTH = 12;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ByteBuffer buffer;
+    private int start;
+    private int length;
+    private String name;
+
+    /**
+     * Points the view at the packet between the buffer's position and limit.
+     */
+    public ControlPacketView wrap(ByteBuffer packet) {
+        buffer = packet;
+        start = packet.position();
+        length = packet.remaining();
+        name = null;
+        return this;
+    }
+
+    /**
+     * Points the view at the first bytes of an array, wrapping it in a
+     * ByteBuffer only when the array changes.
+     */
+    public ControlPacketView wrap(byte[] packet, int length) {
+        if (buffer == null || !buffer.hasArray() || buffer.array() != packet || buffer.arrayOffset() != 0) {
+            buffer = ByteBuffer.wrap(packet);
+        }
+        start = 0;
+        this.length = length;
+        name = null;
+        return this;
+    }
+
+    /**
+     * @return true if the packet has the AppleMIDI signature and is long
+     * enough for the fields of its command
+     */
+    public boolean isValid() {
+        if (length < 4 || (buffer.getShort(start) & 0xFFFF) != SIGNATURE) {
+            return false;
+        }
+        switch (command()) {
+            case IN:
+            case OK:
+            case NO:
+            case BY:
+                return length >= NAME_OFFSET;
+            case CK:
+                return length >= CK_LENGTH;
+            case RS:
+                return length >= RS_LENGTH;
+            default:
+                return true;
+        }
+    }
+
+    /** @return the two command letters as a big-endian int, like {@link #IN} */
+    public int command() { return buffer.getShort(start + 2) & 0xFFFF; }
+    public int length() { return length; }
+
+    public long version() { return u4(VERSION_OFFSET); }
+    public long token() { return u4(TOKEN_OFFSET); }
+
+    /**
+     * @return the sender SSRC, which CK and RS carry at another offset than
+     * the session commands
+     */
+    public long ssrc() {
+        int command = command();
+        return u4(command == CK || command == RS ? SSRC_OFFSET : SESSION_SSRC_OFFSET);
+    }
+
+    public int count() { return buffer.get(start + COUNT_OFFSET) & 0xFF; }
+    public long timestamp1() { return buffer.getLong(start + TIMESTAMP1_OFFSET); }
+    public long timestamp2() { return buffer.getLong(start + TIMESTAMP1_OFFSET + 8); }
+    public long timestamp3() { return buffer.getLong(start + TIMESTAMP1_OFFSET + 16); }
+    public int seqnum() { return buffer.getShort(start + SEQNUM_OFFSET) & 0xFFFF; }
+
+    /**
+     * @return the NUL terminated session name of IN, OK, NO or BY, decoded
+     * on first use; empty if the packet has none
+     */
+    public String name() {
+        if (name == null) {
+            int end = NAME_OFFSET;
+            while (end < length && buffer.get(start + end) != 0) {
+                end++;
+            }
+            byte[] bytes = new byte[Math.max(0, end - NAME_OFFSET)];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(start + NAME_OFFSET + i);
+            }
+            name = new String(bytes, UTF_8);
+        }
+        return name;
+    }
+
+    private long u4(int offset) {
+        return buffer.getInt(start + offset) & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,142 @@
+package com.minz.midi;
+
+import java.io.IOException;
+
+/**
+ * Holds inbound MIDI messages until their playout time, which is the
+ * sender's RTP timestamp mapped onto the local clock plus a fixed playout
+ * delay. Messages leave the buffer shortly before they are due and are
+ * sent with their playout time as timestamp, so network jitter smaller
+ * than the delay does not change the timing between events.
+ * <p>
+ * Messages are kept in a preallocated ring sorted by playout time; as
+ * packets mostly arrive in order, insertion rarely moves anything.
+ * Messages longer than a slot (SysEx) are sent straight away, stamped with
+ * their playout time. When the ring is full its oldest message is sent
+ * early to make room.
+ */
+public class JitterBuffer {
+    /**
+     * Where messages go at playout, the device's input port in the app.
+     */
+    public interface Output {
+        void send(byte[] data, int offset, int count, long timestamp) throws IOException;
+    }
+
+    static final int DEFAULT_CAPACITY = 256;
+    static final int SLOT_SIZE = 3;
+    static final long DEFAULT_PLAYOUT_DELAY = 10000000L;
+    // messages are handed to the output this long before they are due
+    static final long LOOKAHEAD = 1000000L;
+
+    private final Output output;
+    private final MediaClock clock;
+    private final long[] times;
+    private final byte[] data;
+    private final byte[] lengths;
+    private int head;
+    private int count;
+    private long playoutDelay = DEFAULT_PLAYOUT_DELAY;
+    private ClockSync sync;
+    // local media clock ticks minus the sender's ticks
+    private long offset;
+    private boolean anchored;
+
+    public JitterBuffer(Output output, MediaClock clock) {
+        this(output, clock, DEFAULT_CAPACITY);
+    }
+
+    public JitterBuffer(Output output, MediaClock clock, int capacity) {
+        this.output = output;
+        this.clock = clock;
+        times = new long[capacity];
+        data = new byte[capacity * SLOT_SIZE];
+        lengths = new byte[capacity];
+    }
+
+    public synchronized void setPlayoutDelay(long nanos) { playoutDelay = nanos; }
+
+    /**
+     * Sets the estimator tracking the sender's clock through CK exchanges.
+     * Until it has a sample the offset is taken from the packet with the
+     * shortest transit seen so far.
+     */
+    public synchronized void setClockSync(ClockSync sync) { this.sync = sync; }
+
+    /**
+     * Queues a message for playout.
+     * @param remoteTimestamp sender's timestamp of the message in 100
+     * microsecond units; only the low 32 bits are significant
+     */
+    public synchronized void add(byte[] message, int offset, int length, long remoteTimestamp) throws IOException {
+        long time = playoutTime(remoteTimestamp);
+        if (length > SLOT_SIZE) {
+            output.send(message, offset, length, time);
+            return;
+        }
+        if (count == times.length) {
+            sendHead();
+        }
+        int pos = count;
+        while (pos > 0 && times[index(pos - 1)] > time) {
+            move(index(pos - 1), index(pos));
+            pos--;
+        }
+        int slot = index(pos);
+        times[slot] = time;
+        lengths[slot] = (byte) length;
+        System.arraycopy(message, offset, data, slot * SLOT_SIZE, length);
+        count++;
+    }
+
+    /**
+     * Sends every message that is due within the lookahead.
+     * @return nanoseconds until the next message is due, or -1 if the
+     * buffer is empty
+     */
+    public synchronized long drain(long now) throws IOException {
+        while (count > 0) {
+            long wait = times[head] - LOOKAHEAD - now;
+            if (wait > 0) {
+                return wait;
+            }
+            sendHead();
+        }
+        return -1;
+    }
+
+    public synchronized void clear() {
+        head = 0;
+        count = 0;
+    }
+
+    private long playoutTime(long remoteTimestamp) {
+        long nowTicks = clock.now();
+        if (sync != null && sync.isSynced()) {
+            offset = Math.round(sync.offset(nowTicks));
+        } else if (!anchored || nowTicks - remoteTimestamp < offset) {
+            offset = nowTicks - remoteTimestamp;
+            anchored = true;
+        }
+        long remoteNow = nowTicks - offset;
+        // the sender's clock wraps at 32 bits, take the nearest match
+        long remote = remoteNow + (int) (remoteTimestamp - remoteNow);
+        return clock.toNanos(remote + offset) + playoutDelay;
+    }
+
+    private void sendHead() throws IOException {
+        output.send(data, head * SLOT_SIZE, lengths[head], times[head]);
+        head = index(1);
+        count--;
+    }
+
+    private void move(int from, int to) {
+        times[to] = times[from];
+        lengths[to] = lengths[from];
+        System.arraycopy(data, from * SLOT_SIZE, data, to * SLOT_SIZE, SLOT_SIZE);
+    }
+
+    private int index(int pos) {
+        return (head + pos) % times.length;
+    }
+}
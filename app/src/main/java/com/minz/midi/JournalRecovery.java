@@ -0,0 +1,301 @@
+package com.minz.midi;
+
+import java.util.Arrays;
+
+/**
+ * Receiver side of the RTP-MIDI recovery journal (RFC 6295 section 4 and
+ * appendix A). Tracks the channel state played into the device and, after
+ * packets were lost, compares it with the sender's journal to produce the
+ * commands that bring the device back in step: note-offs for notes the
+ * journal shows as released, note-ons for recent notes that were missed,
+ * and controller, program, pitch wheel and channel pressure updates.
+ * <p>
+ * State is kept in fixed primitive arrays indexed by channel and note or
+ * controller number, so memory use does not grow with the session. Chapters
+ * this class does not act on (M, E, A and the system journal) are skipped.
+ */
+public class JournalRecovery {
+    static final int CHANNELS = RecoveryJournal.CHANNELS;
+    static final int UNKNOWN = -1;
+
+    static final int CHAPTER_P = RecoveryJournal.CHAPTER_P;
+    static final int CHAPTER_C = RecoveryJournal.CHAPTER_C;
+    static final int CHAPTER_M = 0x20;
+    static final int CHAPTER_W = RecoveryJournal.CHAPTER_W;
+    static final int CHAPTER_N = RecoveryJournal.CHAPTER_N;
+    static final int CHAPTER_E = 0x04;
+    static final int CHAPTER_T = RecoveryJournal.CHAPTER_T;
+
+    private final byte[] noteVelocity = new byte[CHANNELS * 128];
+    private final byte[] controllerValue = new byte[CHANNELS * 128];
+    private final byte[] program = new byte[CHANNELS];
+    private final byte[] wheelFirst = new byte[CHANNELS];
+    private final byte[] wheelSecond = new byte[CHANNELS];
+    private final byte[] pressure = new byte[CHANNELS];
+    private final byte[] message = new byte[3];
+    // reads the bit-packed chapter fields
+    private final BitCursor in = new BitCursor();
+    private long recoveredCommands;
+
+    public JournalRecovery() {
+        reset();
+    }
+
+    /**
+     * Forgets all tracked state, as at the start of a session.
+     */
+    public void reset() {
+        Arrays.fill(noteVelocity, (byte) 0);
+        Arrays.fill(controllerValue, (byte) UNKNOWN);
+        Arrays.fill(program, (byte) UNKNOWN);
+        Arrays.fill(wheelFirst, (byte) UNKNOWN);
+        Arrays.fill(wheelSecond, (byte) UNKNOWN);
+        Arrays.fill(pressure, (byte) UNKNOWN);
+    }
+
+    /**
+     * Records a channel voice command played into the device.
+     * @param data buffer holding the complete command, status byte included
+     */
+    public void track(byte[] data, int offset) {
+        int status = data[offset] & 0xFF;
+        int channel = status & 0x0F;
+        switch (status & 0xF0) {
+            case 0x80:
+                noteVelocity[(channel << 7) | (data[offset + 1] & 0x7F)] = 0;
+                break;
+            case 0x90:
+                noteVelocity[(channel << 7) | (data[offset + 1] & 0x7F)] = data[offset + 2];
+                break;
+            case 0xB0:
+                controllerValue[(channel << 7) | (data[offset + 1] & 0x7F)] = data[offset + 2];
+                break;
+            case 0xC0:
+                program[channel] = data[offset + 1];
+                break;
+            case 0xD0:
+                pressure[channel] = data[offset + 1];
+                break;
+            case 0xE0:
+                wheelFirst[channel] = data[offset + 1];
+                wheelSecond[channel] = data[offset + 2];
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Walks the recovery journal at the given range of a packet and passes
+     * the commands needed to restore the journalled state to the listener.
+     * @param timestamp time to give the recovery commands, that of the
+     * packet carrying the journal
+     * @return false if the journal is malformed; commands for the channels
+     * before the error have already been passed on
+     */
+    public boolean recover(byte[] packet, int pos, int end, long timestamp, RtpMidiDecoder.Listener listener) {
+        if (pos + 3 > end) {
+            return false;
+        }
+        in.reset(packet, pos);
+        in.readFlag();
+        boolean system = in.readFlag();
+        boolean channelJournals = in.readFlag();
+        in.readFlag();
+        int channels = in.readU4() + 1;
+        in.skip(2);
+        if (system) {
+            // system journal, LENGTH counts its header
+            if (in.position() + 2 > end) {
+                return false;
+            }
+            int start = in.position();
+            in.seek(start + (in.readU16() & 0x03FF));
+        }
+        if (!channelJournals) {
+            return in.position() <= end;
+        }
+        for (int k = 0; k < channels; k++) {
+            pos = in.position();
+            if (pos + 3 > end) {
+                return false;
+            }
+            in.readFlag();
+            int channel = in.readU4();
+            in.readFlag();
+            int length = in.readU10();
+            int toc = in.readU8();
+            int channelEnd = pos + length;
+            if (length < 3 || channelEnd > end) {
+                return false;
+            }
+            if (!recoverChannel(channelEnd, channel, toc, timestamp, listener)) {
+                return false;
+            }
+            in.seek(channelEnd);
+        }
+        return true;
+    }
+
+    /**
+     * Restores the chapters of one channel journal, the cursor on the first
+     * chapter.
+     */
+    private boolean recoverChannel(int end, int channel, int toc, long timestamp,
+                                   RtpMidiDecoder.Listener listener) {
+        int base = channel << 7;
+        if ((toc & CHAPTER_P) != 0) {
+            if (in.position() + 3 > end) {
+                return false;
+            }
+            in.readFlag();
+            int number = in.readU7();
+            boolean bank = in.readFlag();
+            int bankMsb = in.readU7();
+            in.readFlag();
+            int bankLsb = in.readU7();
+            if (program[channel] != number) {
+                if (bank) {
+                    sendBank(listener, channel, RecoveryJournal.BANK_MSB, bankMsb, timestamp);
+                    sendBank(listener, channel, RecoveryJournal.BANK_LSB, bankLsb, timestamp);
+                }
+                send(listener, 0xC0 | channel, number, 0, 2, timestamp);
+            }
+        }
+        if ((toc & CHAPTER_C) != 0) {
+            if (in.position() + 1 > end) {
+                return false;
+            }
+            in.readFlag();
+            int logs = in.readU7() + 1;
+            if (in.position() + 2 * logs > end) {
+                return false;
+            }
+            for (int k = 0; k < logs; k++) {
+                in.readFlag();
+                int number = in.readU7();
+                boolean alternate = in.readFlag();
+                int value = in.readU7();
+                // only the value tool is restored, toggle and count logs (A = 1) are skipped
+                if (!alternate && controllerValue[base | number] != value) {
+                    send(listener, 0xB0 | channel, number, value, 3, timestamp);
+                }
+            }
+        }
+        if ((toc & CHAPTER_M) != 0) {
+            int start = in.position();
+            if (start + 2 > end) {
+                return false;
+            }
+            in.seek(start + (in.readU16() & 0x03FF));
+        }
+        if ((toc & CHAPTER_W) != 0) {
+            if (in.position() + 2 > end) {
+                return false;
+            }
+            in.readFlag();
+            int first = in.readU7();
+            in.readFlag();
+            int second = in.readU7();
+            if (wheelFirst[channel] != first || wheelSecond[channel] != second) {
+                send(listener, 0xE0 | channel, first, second, 3, timestamp);
+            }
+        }
+        if ((toc & CHAPTER_N) != 0) {
+            if (!recoverNotes(end, channel, timestamp, listener)) {
+                return false;
+            }
+        }
+        if ((toc & CHAPTER_E) != 0) {
+            if (in.position() + 1 > end) {
+                return false;
+            }
+            in.readFlag();
+            in.skip(2 * (in.readU7() + 1));
+        }
+        if ((toc & CHAPTER_T) != 0) {
+            if (in.position() + 1 > end) {
+                return false;
+            }
+            in.readFlag();
+            int value = in.readU7();
+            if (pressure[channel] != value) {
+                send(listener, 0xD0 | channel, value, 0, 2, timestamp);
+            }
+        }
+        // chapter A, if present, runs to the end of the channel journal
+        return in.position() <= end;
+    }
+
+    /**
+     * Restores chapter N at the cursor: releases the notes in OFFBITS that
+     * are still sounding, and starts missed notes whose log is flagged
+     * recent (Y). Leaves the cursor after the chapter.
+     * @return false if the chapter is malformed
+     */
+    private boolean recoverNotes(int end, int channel, long timestamp, RtpMidiDecoder.Listener listener) {
+        if (in.position() + 2 > end) {
+            return false;
+        }
+        int base = channel << 7;
+        in.readFlag();
+        int logs = in.readU7();
+        int low = in.readU4();
+        int high = in.readU4();
+        if (logs == 127 && low == 15 && high == 0) {
+            logs = 128;
+        }
+        int octets = low <= high ? high - low + 1 : 0;
+        if (in.position() + 2 * logs + octets > end) {
+            return false;
+        }
+        for (int k = 0; k < logs; k++) {
+            in.readFlag();
+            int number = in.readU7();
+            boolean recent = in.readFlag();
+            int velocity = in.readU7();
+            if (velocity == 0) {
+                if (noteVelocity[base | number] != 0) {
+                    send(listener, 0x80 | channel, number, 0, 3, timestamp);
+                }
+            } else if (recent && noteVelocity[base | number] == 0) {
+                send(listener, 0x90 | channel, number, velocity, 3, timestamp);
+            }
+        }
+        for (int octet = 0; octet < octets; octet++) {
+            int bits = in.readU8();
+            int first = (low + octet) << 3;
+            for (int bit = 0; bits != 0; bit++, bits = (bits << 1) & 0xFF) {
+                if ((bits & 0x80) != 0 && noteVelocity[base | (first + bit)] != 0) {
+                    send(listener, 0x80 | channel, first + bit, 0, 3, timestamp);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Restores a bank controller before a program change, unless the device
+     * already has the value. A controller the sender never sent is coded as
+     * 0, so it is only sent where the device was moved off its power-on 0.
+     */
+    private void sendBank(RtpMidiDecoder.Listener listener, int channel, int number, int value, long timestamp) {
+        int current = controllerValue[(channel << 7) | number];
+        if (current != value && (current != UNKNOWN || value != 0)) {
+            send(listener, 0xB0 | channel, number, value, 3, timestamp);
+        }
+    }
+
+    private void send(RtpMidiDecoder.Listener listener, int status, int first, int second, int count,
+                      long timestamp) {
+        message[0] = (byte) status;
+        message[1] = (byte) first;
+        message[2] = (byte) second;
+        track(message, 0);
+        recoveredCommands++;
+        listener.onMessage(message, 0, count, timestamp);
+    }
+
+    /** @return number of commands produced from journals so far */
+    public long recoveredCommands() { return recoveredCommands; }
+}
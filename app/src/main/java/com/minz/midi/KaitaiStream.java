@@ -458,6 +458,18 @@ public abstract class KaitaiStream implements Closeable {
      */
     abstract public void writeBytes(byte[] buf);
 
+    /**
+     * Writes a range of the given byte array to the stream.
+     * @param buf byte array to write from
+     * @param offset index of the first byte to write
+     * @param length number of bytes to write
+     */
+    public void writeBytes(byte[] buf, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            writeU1(buf[offset + i] & 0xff);
+        }
+    }
+
     abstract public void writeBytesLimit(byte[] buf, long size, byte term, byte padByte);
 
     abstract public void writeStream(KaitaiStream other);
@@ -23,6 +23,7 @@
 
 package com.minz.midi;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 
 /**
@@ -49,6 +50,15 @@ public class KaitaiStruct {
             super(_io);
         }
         public abstract void _read();
+
+        /**
+         * Parses this object again from another stream, so one object can
+         * be reused for packet after packet.
+         */
+        public void _read(KaitaiStream io) {
+            this._io = io;
+            _read();
+        }
     }
 
     /**
@@ -64,23 +74,49 @@ public class KaitaiStruct {
         public abstract void _write();
         public abstract void _check();
 
+        /**
+         * @return exact number of bytes {@link #_write()} produces for the
+         * current state of this object
+         */
+        public abstract int _size();
+
         public void _write(KaitaiStream io) {
             this._io = io;
             _write();
         }
 
         /**
-         * Serializes current state of this object into byte array. Internally,
-         * creates a fresh growable KaitaiStream, writes object's state into
-         * it, and then converts it into byte array.
+         * Serializes current state of this object into the given buffer,
+         * starting at its position, and advances the position past it.
+         * @return number of bytes written
+         * @throws BufferOverflowException if the buffer has less than
+         * {@link #_size()} bytes remaining; nothing is written then
+         */
+        public int _write(ByteBuffer buffer) {
+            int size = _size();
+            if (buffer.remaining() < size) {
+                throw new BufferOverflowException();
+            }
+            KaitaiStream oldIo = _io;
+            ByteBufferKaitaiStream io = ByteBufferKaitaiStream.obtain(buffer);
+            try {
+                _io = io;
+                _write();
+            } finally {
+                _io = oldIo;
+                io.recycle();
+            }
+            return size;
+        }
+
+        /**
+         * Serializes current state of this object into a byte array of
+         * exactly {@link #_size()} bytes.
          * @return serialized object state
          */
         public byte[] _toByteArray() {
-            KaitaiStream oldIo = _io;
-            _io = new ByteBufferKaitaiStream(100000);
-            _write();
-            byte[] r = _io.toByteArrayFlip();
-            _io = oldIo;
+            byte[] r = new byte[_size()];
+            _write(ByteBuffer.wrap(r));
             return r;
         }
     }
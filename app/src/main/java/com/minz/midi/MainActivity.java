@@ -66,11 +66,12 @@ public class MainActivity extends AppCompatActivity {
         binding.deviceList.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
             @Override
             public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
-
                 if(binding.deviceList.getSelectedItem().toString().equals("Add Custom IP")){
+                    mNsdHelper.selectService(-1);
                     binding.editTextIp.setVisibility(View.VISIBLE);
                 }
                 else{
+                    mNsdHelper.selectService(position);
                     binding.editTextIp.setVisibility((View.GONE));
                     View viesw = getCurrentFocus();
                     if(viesw==null){
@@ -125,8 +126,9 @@ public class MainActivity extends AppCompatActivity {
         mNsdHelper.buttonState.observe(this, new Observer<String>() {
             @Override
             public void onChanged(String s) {
-                if(s.matches("Disconnect|Connecting") )binding.deviceList.setEnabled(false);
-                if(s.equals("Connect"))binding.deviceList.setEnabled(true);
+                // other peers can be picked and connected while a session runs
+                if(s.matches("Connecting|Disconnecting") )binding.deviceList.setEnabled(false);
+                if(s.matches("Connect|Disconnect"))binding.deviceList.setEnabled(true);
 
                 binding.connectButton.setText(s);
             }
@@ -0,0 +1,58 @@
+package com.minz.midi;
+
+import java.util.Random;
+
+/**
+ * Session media clock for RTP and CK timestamps: 100 microsecond ticks
+ * (10 kHz) counted from {@link System#nanoTime}, which is monotonic and is
+ * the clock Android stamps MIDI events with. Each session starts the clock
+ * at a random 32-bit value, as RTP recommends.
+ * <p>
+ * Ticks are kept as longs; the RTP header carries their low 32 bits and the
+ * CK exchange the full 64 bits.
+ */
+public class MediaClock {
+    static final long NANOS_PER_TICK = 100000L;
+    static final long TICKS_PER_SECOND = 10000L;
+
+    // nanoTime of tick zero
+    private final long originNanos;
+
+    public MediaClock() {
+        this(new Random().nextInt() & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @param startTicks clock value at the time of the call
+     */
+    public MediaClock(long startTicks) {
+        originNanos = System.nanoTime() - startTicks * NANOS_PER_TICK;
+    }
+
+    /** @return current time in ticks */
+    public long now() {
+        return toTicks(System.nanoTime());
+    }
+
+    /**
+     * Converts a {@link System#nanoTime} value to ticks.
+     */
+    public long toTicks(long nanos) {
+        return Math.floorDiv(nanos - originNanos, NANOS_PER_TICK);
+    }
+
+    /**
+     * Converts ticks to a {@link System#nanoTime} value.
+     */
+    public long toNanos(long ticks) {
+        return originNanos + ticks * NANOS_PER_TICK;
+    }
+
+    /**
+     * @return ticks to add to a time on this clock to get the same time on
+     * the other clock
+     */
+    public long ticksTo(MediaClock other) {
+        return Math.round((originNanos - other.originNanos) / (double) NANOS_PER_TICK);
+    }
+}
@@ -0,0 +1,186 @@
+package com.minz.midi;
+
+/**
+ * Incremental MIDI 1.0 byte stream parser. Bytes can be fed in arbitrary
+ * pieces, as delivered to {@link android.media.midi.MidiReceiver#onSend};
+ * partial messages and running status are carried over to the next call
+ * and every complete message is passed to the {@link Listener} with its
+ * status byte. System Real-Time bytes are reported as soon as they are
+ * seen, even in the middle of another message. System Exclusive data is
+ * passed on in runs as it arrives, without waiting for the end of the
+ * message; a message cut short by another status byte is reported as
+ * cancelled. Bytes that do not fit the stream are counted and skipped
+ * rather than reported as errors.
+ */
+public class MidiStreamParser {
+    public interface Listener {
+        /**
+         * Called for every complete message. The buffer is only valid for
+         * the duration of the call.
+         */
+        void onMessage(byte[] data, int offset, int count, long timestamp);
+
+        /**
+         * Called for each run of System Exclusive data bytes, without the
+         * F0 and F7 framing bytes.
+         * @param start true for the first run of a message
+         * @param end true if the message ends with this run
+         */
+        void onSysEx(byte[] data, int offset, int count, boolean start, boolean end, long timestamp);
+
+        /**
+         * Called when a status byte other than F7 interrupts a System
+         * Exclusive message some of whose data was already reported; the
+         * message is incomplete and should be discarded.
+         */
+        void onSysExCancelled(long timestamp);
+    }
+
+    private final Listener listener;
+    private final byte[] message = new byte[3];
+    // number of data bytes the pending status still needs, -1 if none pending
+    private int needed = -1;
+    private int length;
+    private boolean inSysEx;
+    private boolean sysExStart;
+    private long droppedBytes;
+
+    public MidiStreamParser(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void feed(byte[] data, int offset, int count, long timestamp) {
+        int end = offset + count;
+        // start of the System Exclusive data run in this buffer, -1 if none
+        int run = -1;
+        for (int i = offset; i < end; i++) {
+            int b = data[i] & 0xFF;
+            if (b >= 0xF8) {
+                if (run >= 0) {
+                    sysEx(data, run, i - run, false, timestamp);
+                    run = -1;
+                }
+                if (b == 0xF9 || b == 0xFD) {
+                    droppedBytes++;
+                } else {
+                    listener.onMessage(data, i, 1, timestamp);
+                }
+            } else if (b >= 0x80) {
+                if (inSysEx) {
+                    if (b == 0xF7) {
+                        if (run >= 0) {
+                            sysEx(data, run, i - run, true, timestamp);
+                        } else {
+                            sysEx(data, i, 0, true, timestamp);
+                        }
+                    } else {
+                        // any other status byte cuts the message short
+                        if (run >= 0) {
+                            sysEx(data, run, i - run, false, timestamp);
+                        }
+                        if (!sysExStart) {
+                            listener.onSysExCancelled(timestamp);
+                        }
+                    }
+                    run = -1;
+                }
+                status(b, timestamp);
+            } else if (inSysEx) {
+                if (run < 0) {
+                    run = i;
+                }
+            } else if (needed > 0) {
+                message[length++] = (byte) b;
+                if (--needed == 0) {
+                    listener.onMessage(message, 0, length, timestamp);
+                    if ((message[0] & 0xFF) < 0xF0) {
+                        // keep running status for the next data bytes
+                        needed = length - 1;
+                        length = 1;
+                    } else {
+                        needed = -1;
+                    }
+                }
+            } else {
+                droppedBytes++;
+            }
+        }
+        if (run >= 0) {
+            sysEx(data, run, end - run, false, timestamp);
+        }
+    }
+
+    private void sysEx(byte[] data, int offset, int count, boolean last, long timestamp) {
+        if (count == 0 && !last) {
+            return;
+        }
+        listener.onSysEx(data, offset, count, sysExStart, last, timestamp);
+        sysExStart = false;
+    }
+
+    private void status(int b, long timestamp) {
+        if (needed > 0 && length > 1) {
+            // incomplete message interrupted by a new status
+            droppedBytes += length;
+        }
+        inSysEx = false;
+        needed = -1;
+        length = 0;
+        if (b < 0xF0) {
+            message[length++] = (byte) b;
+            needed = dataLength(b);
+            return;
+        }
+        switch (b) {
+            case 0xF0:
+                inSysEx = true;
+                sysExStart = true;
+                break;
+            case 0xF1:
+            case 0xF3:
+                message[length++] = (byte) b;
+                needed = 1;
+                break;
+            case 0xF2:
+                message[length++] = (byte) b;
+                needed = 2;
+                break;
+            case 0xF6:
+                message[0] = (byte) b;
+                listener.onMessage(message, 0, 1, timestamp);
+                break;
+            case 0xF7:
+                break;
+            default:
+                droppedBytes++;
+                break;
+        }
+    }
+
+    /**
+     * Clears any partial message and running status.
+     */
+    public void reset() {
+        needed = -1;
+        length = 0;
+        inSysEx = false;
+    }
+
+    /**
+     * @return number of bytes skipped because they did not fit the stream
+     */
+    public long droppedBytes() { return droppedBytes; }
+
+    /**
+     * @return number of data bytes following the given channel status byte
+     */
+    static int dataLength(int status) {
+        switch (status & 0xF0) {
+            case 0xC0:
+            case 0xD0:
+                return 1;
+            default:
+                return 2;
+        }
+    }
+}
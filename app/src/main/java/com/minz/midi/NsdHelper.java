@@ -7,6 +7,7 @@ import android.content.pm.PackageManager;
 import android.media.midi.MidiDevice;
 import android.media.midi.MidiDeviceInfo;
 import android.media.midi.MidiDeviceStatus;
+import android.media.midi.MidiInputPort;
 import android.media.midi.MidiManager;
 import android.media.midi.MidiOutputPort;
 import android.media.midi.MidiReceiver;
@@ -29,18 +30,17 @@ import androidx.lifecycle.ViewModel;
 
 import java.io.IOException;
 import java.lang.reflect.Array;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.time.temporal.ValueRange;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Collectors;
 
 public class NsdHelper extends AndroidViewModel {
@@ -49,6 +49,9 @@ public class NsdHelper extends AndroidViewModel {
     NsdManager.RegistrationListener mRegistrationListener;
     public static final String SERVICE_TYPE = "_apple-midi._udp.";
     public static final String TAG = "NsdHelper";
+    static final byte[] COMMAND_IN = {'I', 'N'};
+    static final byte[] COMMAND_OK = {'O', 'K'};
+    static final byte[] COMMAND_BY = {'B', 'Y'};
     public static String mServiceName;
     NsdServiceInfo mService;
     List<NsdServiceInfo> services;
@@ -59,12 +62,62 @@ public class NsdHelper extends AndroidViewModel {
     List<String> midiDevices;
     public MutableLiveData<List<String>> midiDevicesLiveData;
     NsdServiceInfo server;
+    // the server last entered through "Add Custom IP", position -1 in the UI
+    NsdServiceInfo customServer;
     public MutableLiveData<String> buttonState;
-    long initToken;
-    long ssrc;
-    TimestampSync mTimestampSync;
     int midiDevicePos;
-    MIDISessionControlPort mMidiSessionControlPort;
+    // runs the control and data ports of all sessions, opened on first connect
+    SessionEventLoop eventLoop;
+    // sessions by peer SSRC once the peer answered, and by initiator token
+    // while inviting; only used on the event loop
+    final SessionTable<Session> sessionsBySsrc = new SessionTable<>();
+    final SessionTable<Session> sessionsByToken = new SessionTable<>();
+    final List<Session> sessions = new CopyOnWriteArrayList<>();
+    // session with the peer selected in the UI, the connect button acts on it
+    volatile Session selectedSession;
+    MidiDeviceLink deviceLink;
+    // view of the control packet being handled and buffer control packets
+    // are written to for sending, only used on the event loop
+    final ControlPacketView controlView = new ControlPacketView();
+    final ByteBuffer sendBuffer = ByteBuffer.allocate(SessionEventLoop.MAX_DATAGRAM);
+    final SessionEventLoop.PacketHandler packetHandler = new SessionEventLoop.PacketHandler() {
+        @Override
+        public void onPacket(boolean data, byte[] packet, int length, InetSocketAddress from) {
+            Session session = findSession(data, packet, length, from);
+            if (session == null && !data) {
+                session = acceptInvitation(from);
+            }
+            if (session != null) {
+                session.onPacket(data, packet, length);
+            }
+        }
+    };
+    // how long outgoing MIDI commands are held to be coalesced into one packet,
+    // 0 sends the commands of each onSend callback together
+    public int coalesceWindowMs = 0;
+    // leave out repeated status bytes within a command list (RFC 6295 running status)
+    public boolean runningStatus = false;
+    // path MTU that bounds outgoing packets, SysEx is segmented to fit
+    public int mtu = RtpMidiEncoder.DEFAULT_MTU;
+    // queue SysEx and send it paced at bulkSysExRate bytes per second
+    public boolean bulkSysEx = false;
+    public long bulkSysExRate = SysExPacer.DEFAULT_RATE;
+    // send the RFC 6295 recovery journal so peers can recover from lost packets
+    public boolean recoveryJournal = true;
+    // how long incoming MIDI is held before playout to absorb network jitter
+    public int playoutDelayMs = 10;
+    // encode the device's MIDI once for all sessions and only patch the RTP
+    // header per peer, instead of one encoder per session
+    public boolean fanOut = false;
+    // wait for an answer to IN or CK before the first retry; each retry
+    // doubles the wait up to maxRetryTimeoutMs, and after maxAttempts
+    // unanswered packets the session is given up
+    public int retryTimeoutMs = 250;
+    public int maxRetryTimeoutMs = 2000;
+    public int maxAttempts = 12;
+    // a responding session is closed when the peer sends nothing for this
+    // many of its CK intervals
+    public int missedSyncs = 3;
 
     @RequiresApi(api = Build.VERSION_CODES.N)
     public NsdHelper(@NonNull Application application) {
@@ -76,6 +129,8 @@ public class NsdHelper extends AndroidViewModel {
         devicesLiveData.setValue(Arrays.asList("No Network MIDI Devices Found"));
         discoverServices();
         registerService(mServiceName,5004);
+        // peers that discover us invite on the advertised port
+        startEventLoop();
 
         mMidiManager = (MidiManager) application.getApplicationContext().getSystemService(Context.MIDI_SERVICE);
         midiDeviceInfos = new ArrayList();
@@ -252,6 +307,17 @@ public class NsdHelper extends AndroidViewModel {
             }
             mRegistrationListener = null;
         }
+        if (eventLoop != null) {
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Session session : sessions) {
+                        session.close(true);
+                    }
+                    eventLoop.quit();
+                }
+            });
+        }
         super.onCleared();
     }
 
@@ -276,8 +342,9 @@ public class NsdHelper extends AndroidViewModel {
                     }
                     info.setPort(port);
                     server=info;
+                    customServer=info;
                     buttonState.setValue("Connecting");
-                    new MIDISessionInitiator().start();
+                    startSession();
                 }
             }
             else{
@@ -289,149 +356,228 @@ public class NsdHelper extends AndroidViewModel {
             Log.d(TAG, "connecting to : " + services.get(pos));
             server = services.get(pos);
             buttonState.setValue("Connecting");
-            new MIDISessionInitiator().start();
+            startSession();
         }
         else if(buttonState.getValue().equals("Disconnect")){
+            final Session current = selectedSession;
+            if (current == null) {
+                buttonState.setValue("Connect");
+                return;
+            }
             buttonState.setValue("Disconnecting");
-            mMidiSessionControlPort.interrupt();
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    current.close(true);
+                }
+            });
+        }
+
+    }
+
+    /**
+     * Points the connect button at the session with the peer selected in
+     * the UI, if there is one.
+     * @param pos position in the discovered services, or -1 for the custom IP
+     */
+    public void selectService(int pos) {
+        Session found = null;
+        if (pos >= 0 && pos < services.size()) {
+            found = findSession(services.get(pos).getHost(), services.get(pos).getPort());
+        } else if (pos == -1 && customServer != null) {
+            found = findSession(customServer.getHost(), customServer.getPort());
+        }
+        selectedSession = found;
+        buttonState.setValue(found != null ? found.buttonText() : "Connect");
+    }
+
+    Session findSession(InetAddress host, int port) {
+        for (Session session : sessions) {
+            if (session.host.equals(host) && session.controlAddress.getPort() == port) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    void postButtonState(Session session) {
+        if (session == selectedSession) {
+            buttonState.postValue(session.buttonText());
+        }
+    }
+
+    /**
+     * Finds the session a packet belongs to from the sender SSRC it carries,
+     * or for answers to an invitation from the initiator token, and checks
+     * that it comes from that session's peer. Runs on the event loop.
+     */
+    Session findSession(boolean data, byte[] packet, int length, InetSocketAddress from) {
+        Session session;
+        if (data && RtpMidiDecoder.isDataPacket(packet, 0, length)) {
+            session = sessionsBySsrc.get(RtpMidiData.ssrc(packet, 0));
+        } else if (controlView.wrap(packet, length).isValid()) {
+            int command = controlView.command();
+            session = sessionsBySsrc.get(controlView.ssrc());
+            if (session == null && command != ControlPacketView.CK && command != ControlPacketView.RS) {
+                session = sessionsByToken.get(controlView.token());
+            }
+        } else {
+            return null;
+        }
+        return session != null && session.host.equals(from.getAddress()) ? session : null;
+    }
+
+    /**
+     * Starts a responder session for an IN from a peer we have no session
+     * with, the packet in {@link #controlView}. Runs on the event loop.
+     * @return the new session, or null if the packet is not an invitation
+     */
+    Session acceptInvitation(InetSocketAddress from) {
+        if (!controlView.isValid() || controlView.command() != ControlPacketView.IN) {
+            return null;
+        }
+        long peerSsrc = controlView.ssrc();
+        if (sessionsBySsrc.get(peerSsrc) != null) {
+            // the SSRC is taken by a session with another host
+            return null;
+        }
+        Log.d("DEBUG", "Invitation from " + controlView.name() + " at " + from);
+        Session session = new Session(from.getAddress(), from.getPort(), controlView.token(), peerSsrc);
+        sessions.add(session);
+        sessionsBySsrc.put(peerSsrc, session);
+        session.state = Session.STATE_INVITED_CONTROL;
+        session.startNanos = System.nanoTime();
+        eventLoop.postDelayed(session.retryTask, (long) maxRetryTimeoutMs * maxAttempts);
+        return session;
+    }
+
+    /**
+     * Opens the session ports, if they are not open yet.
+     * @return false if the ports could not be bound
+     */
+    boolean startEventLoop() {
+        if (eventLoop == null) {
             try {
-                mMidiSessionControlPort.join();
-            } catch (InterruptedException e) {
+                eventLoop = new SessionEventLoop(5004, packetHandler);
+            } catch (IOException e) {
+                Log.d("DEBUG", "Exception at startEventLoop:" + e.toString());
                 e.printStackTrace();
+                return false;
             }
-            new MIDISessionTerminator().start();
+            eventLoop.start();
         }
+        return true;
+    }
 
+    /**
+     * Invites the chosen server, opening the session ports on first use.
+     */
+    void startSession() {
+        if (!startEventLoop()) {
+            buttonState.setValue("Connect");
+            return;
+        }
+        Session existing = findSession(server.getHost(), server.getPort());
+        if (existing != null) {
+            selectedSession = existing;
+            buttonState.setValue(existing.buttonText());
+            return;
+        }
+        final Session newSession = new Session(server.getHost(), server.getPort());
+        sessions.add(newSession);
+        selectedSession = newSession;
+        eventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                newSession.start();
+            }
+        });
     }
-    class MidiPacketProcessor extends Thread{
-        long ssrc;
-        DatagramSocket socket;
-        long offset_estimate = 0;
+    /**
+     * The MIDI device shared by all sessions. MIDI from its output port is
+     * parsed once and handed to every sender, one per connected session or,
+     * with {@link #fanOut}, a single one for all of them. Each session plays
+     * what it receives into the input port through {@link #deviceInput}.
+     * Opened with the first session, closed with the last one.
+     */
+    class MidiDeviceLink {
+        // replaced as a whole on change, so the MIDI thread can walk it without locking
+        volatile MidiSender[] senders = new MidiSender[0];
+        // the sender all sessions share in fan-out mode
+        MidiSender groupSender;
+        int users;
+        final MidiStreamParser parser;
+        MidiDevice device;
         MidiOutputPort outputPort;
-        int seq;
+        volatile MidiInputPort inputPort;
+        boolean closed;
+        final JitterBuffer.Output deviceInput = new JitterBuffer.Output() {
+            @Override
+            public void send(byte[] data, int offset, int count, long timestamp) throws IOException {
+                MidiInputPort port = inputPort;
+                if (port != null) {
+                    port.send(data, offset, count, timestamp);
+                }
+            }
+        };
 
-        public MidiPacketProcessor(DatagramSocket socket,long ssrc,long offset_estimate){
-            this.socket=socket;
-            this.ssrc=ssrc;
-            this.offset_estimate=offset_estimate;
-            seq = 0;
+        MidiDeviceLink() {
+            parser = new MidiStreamParser(new MidiStreamParser.Listener() {
+                @Override
+                public void onMessage(byte[] data, int offset, int count, long timestamp) {
+                    for (MidiSender sender : senders) {
+                        sender.addCommand(data, offset, count, timestamp);
+                    }
+                }
+                @Override
+                public void onSysEx(byte[] data, int offset, int count, boolean start, boolean end, long timestamp) {
+                    for (MidiSender sender : senders) {
+                        sender.addSysEx(data, offset, count, start, end, timestamp);
+                    }
+                }
+                @Override
+                public void onSysExCancelled(long timestamp) {
+                    for (MidiSender sender : senders) {
+                        sender.cancelSysEx(timestamp);
+                    }
+                }
+            });
         }
 
-        @Override
-        public void run(){
-            Looper.prepare();
-            Looper looper = Looper.myLooper();
+        /**
+         * Opens the chosen MIDI device. Its callbacks come on the main thread,
+         * MIDI from the device on a binder thread.
+         */
+        void open(){
+            if (midiDevicePos < 0 || midiDevicePos >= midiDeviceInfos.size()) {
+                Log.e(TAG, "no MIDI device to open");
+                return;
+            }
             mMidiManager.openDevice(midiDeviceInfos.get(midiDevicePos), new MidiManager.OnDeviceOpenedListener() {
                 @Override
                 public void onDeviceOpened(MidiDevice device) {
                     if (device == null) {
                         Log.e(TAG, "could not open device " + midiDeviceInfos.get(midiDevicePos));
                     } else {
+                        synchronized (MidiDeviceLink.this) {
+                            if (closed) {
+                                closeDevice(device);
+                                return;
+                            }
+                            MidiDeviceLink.this.device = device;
+                        }
                         class MyReceiver extends MidiReceiver {
                             public void onSend(byte[] data, int offset,
                                                int count, long timestamp) throws IOException {
-
-                                StringBuilder sb = new StringBuilder();
-                                sb.append("[ ");
-                                for (int i = offset; i < offset + count; ++i) {
-                                    sb.append(String.format("0x%02X ", data[i]));
-                                }
-                                sb.append("]");
-                                Log.d(" Midiout", "timestamp: " + timestamp + " offset: " + offset + "count: " + count + "data: " + sb.toString());
-                                processMidiData(data, offset, count);
-
-                            }
-                            private void processMidiData(byte[] midiData, int offset,
-                                                         int count){
-                                int i = offset;
-                                while ( i < offset + count) {
-                                    byte[] rtpBuffer = new byte[16];
-                                    int numBytes = 0;
-                                    rtpBuffer[numBytes++]=(byte) (0x80);
-                                    rtpBuffer[numBytes++]=(byte) (0x61);
-                                    seq++;
-                                    rtpBuffer[numBytes++]=(byte) ((0xFF00 & seq)>>8);
-                                    rtpBuffer[numBytes++]=(byte) ((0x00FF) & seq);
-
-                                    long time1 = java.lang.System.currentTimeMillis() * 10 + 100;
-                                    rtpBuffer[numBytes++]=(byte) ((0xFF000000 & time1)>>24);
-                                    rtpBuffer[numBytes++]=(byte) ((0x00FF0000 & time1)>>16);
-                                    rtpBuffer[numBytes++]=(byte) ((0x0000FF00 & time1)>>8);
-                                    rtpBuffer[numBytes++]=(byte)  (0x000000FF & time1);
-
-                                    rtpBuffer[numBytes++]=(byte) ((0xFF000000 & ssrc)>>24);
-                                    rtpBuffer[numBytes++]=(byte) ((0x00FF0000 & ssrc)>>16);
-                                    rtpBuffer[numBytes++]=(byte) ((0x0000FF00 & ssrc)>>8);
-                                    rtpBuffer[numBytes++]=(byte)  (0x000000FF & ssrc);
-                                    byte msNibble= (byte) (((byte) (0xF0)) & midiData[i]);
-                                    switch(msNibble){
-                                        case (byte) (0x80):
-                                        case (byte) (0x90):
-                                        case (byte) (0xA0):
-                                        case (byte) (0xB0):
-                                        case (byte) (0xE0):
-                                            rtpBuffer[numBytes++]=(byte) (0x03);
-                                            rtpBuffer[numBytes++]=midiData[i++];
-                                            rtpBuffer[numBytes++]=midiData[i++];
-                                            rtpBuffer[numBytes++]=midiData[i++];
-                                            break;
-
-                                        case (byte) (0xC0):
-                                        case (byte) (0xD0):
-                                            rtpBuffer[numBytes++]=(byte) (0x02);
-                                            rtpBuffer[numBytes++]=midiData[i++];
-                                            rtpBuffer[numBytes++]=midiData[i++];
-                                            break;
-
-                                        case (byte) (0xF0):
-                                            switch (midiData[i]){
-                                                case (byte) (0xF0):
-                                                    Log.d("Debug","System Exclusive");
-                                                    break;
-                                                case (byte) (0xF2):
-                                                    Log.d("Debug","SONG POSITION");
-                                                    rtpBuffer[numBytes++]=(byte) (0x03);
-                                                    rtpBuffer[numBytes++]=midiData[i++];
-                                                    rtpBuffer[numBytes++]=midiData[i++];
-                                                    rtpBuffer[numBytes++]=midiData[i++];
-                                                    break;
-                                                case (byte) (0xF3):
-                                                case (byte) (0xF5):
-                                                    //Log.d("Debug","System Exclusive");
-                                                    rtpBuffer[numBytes++]=(byte) (0x02);
-                                                    rtpBuffer[numBytes++]=midiData[i++];
-                                                    rtpBuffer[numBytes++]=midiData[i++];
-                                                    break;
-                                                default:
-                                                    rtpBuffer[numBytes++]=(byte) (0x01);
-                                                    rtpBuffer[numBytes++]=midiData[i++];
-                                                    break;
-                                            }
-                                            break;
-                                            default:
-                                                rtpBuffer[numBytes++]=(byte) (0x02);
-                                                rtpBuffer[numBytes++]=midiData[i++];
-                                                rtpBuffer[numBytes++]=midiData[i++];
-                                            break;
-                                    }
-                                    StringBuilder sb = new StringBuilder();
-                                    sb.append("[ ");
-                                    for (int j = 0; j < numBytes; ++j) {
-                                        sb.append(String.format("0x%02X ", rtpBuffer[j]));
-                                    }
-                                    sb.append("]");
-                                    Log.d(" Midipacket", sb.toString());
-                                    try {
-                                        DatagramPacket sDatagramPacket = new DatagramPacket(rtpBuffer, numBytes);
-                                        sDatagramPacket.setAddress(server.getHost());
-                                        sDatagramPacket.setPort(server.getPort()+1);
-                                        socket.send(sDatagramPacket);
-                                    } catch (IOException e) {
-                                        e.printStackTrace();
-                                    }
+                                parser.feed(data, offset, count, timestamp);
+                                for (MidiSender sender : senders) {
+                                    sender.commandsAdded();
                                 }
                             }
                         }
+                        if (device.getInfo().getInputPortCount() > 0) {
+                            inputPort = device.openInputPort(0);
+                        }
                         outputPort = device.openOutputPort(0);
                         if(outputPort!=null){
                             outputPort.connect(new MyReceiver());
@@ -445,342 +591,674 @@ public class NsdHelper extends AndroidViewModel {
                     }
 
                 }
-            }, new Handler(looper));
-            Looper.loop();
+            }, new Handler(Looper.getMainLooper()));
         }
 
-        @Override
-        public void interrupt() {
-            super.interrupt();
+        /**
+         * @return the sender a new session should join: the shared one in
+         * fan-out mode, otherwise a new one running on the session's clock
+         */
+        synchronized MidiSender sender(MediaClock sessionClock) {
+            if (!fanOut) {
+                return new MidiSender(sessionClock);
+            }
+            if (groupSender == null) {
+                groupSender = new MidiSender(new MediaClock());
+            }
+            return groupSender;
+        }
+
+        synchronized void add(MidiPacketProcessor processor) {
+            users++;
+            if (Arrays.asList(senders).contains(processor.sender)) {
+                return;
+            }
+            MidiSender[] more = Arrays.copyOf(senders, senders.length + 1);
+            more[senders.length] = processor.sender;
+            senders = more;
+        }
+
+        /**
+         * @return number of sessions still using the device
+         */
+        synchronized int remove(MidiPacketProcessor processor) {
+            users--;
+            int i = Arrays.asList(senders).indexOf(processor.sender);
+            if (i >= 0 && processor.sender != groupSender) {
+                MidiSender[] fewer = new MidiSender[senders.length - 1];
+                System.arraycopy(senders, 0, fewer, 0, i);
+                System.arraycopy(senders, i + 1, fewer, i, fewer.length - i);
+                senders = fewer;
+            }
+            return users;
+        }
+
+        void close() {
+            MidiDevice openDevice;
+            synchronized (this) {
+                closed = true;
+                openDevice = device;
+                senders = new MidiSender[0];
+            }
+            Log.d("MIDI", "midi device closed, dropped input bytes: " + parser.droppedBytes());
             try {
-                Log.d("MIDI", "midipacketprocessor interrupted");
-                outputPort.close();
+                if (inputPort != null) {
+                    inputPort.close();
+                }
+                if (outputPort != null) {
+                    outputPort.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (openDevice != null) {
+                closeDevice(openDevice);
+            }
+        }
+
+        private void closeDevice(MidiDevice device) {
+            try {
+                device.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
 
-    class TimestampSync extends Thread{
-        long ssrc;
-        DatagramSocket socket;
-        DatagramPacket sDatagramPacket;
-        DatagramPacket rDatagramPacket;
-        Timestamp tsPacket;
-        Timestamp trPacket;
-        MidiPacketProcessor mMidiPacketProcessor;
+    /**
+     * Encodes the device's MIDI into RTP-MIDI packets, on its own media
+     * clock and sequence numbers. Sends to one session, or in fan-out mode
+     * to every session as a peer of its encoder.
+     */
+    class MidiSender {
+        final MediaClock mediaClock;
+        final RtpMidiEncoder encoder;
+        final SysExPacer pacer;
+        boolean flushScheduled;
+        final Runnable flushTask = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (MidiSender.this) {
+                    flushScheduled = false;
+                }
+                flushEncoder();
+            }
+        };
+        // runs while the pacer has data: started by the write that finds it
+        // empty, stopped by the drain that empties it
+        final Runnable drainTask = new Runnable() {
+            @Override
+            public void run() {
+                long delay = -1;
+                try {
+                    delay = pacer.drain(mediaClock.now());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    // the rest stays queued, and no write would restart us
+                    delay = pacer.isEmpty() ? -1 : retryTimeoutMs;
+                }
+                if (delay >= 0) {
+                    eventLoop.postDelayed(this, delay);
+                }
+            }
+        };
 
-        byte [] buffer=new byte[1024];
-        public TimestampSync(long ssrc, DatagramPacket sDatagramPacket){
-            this.ssrc=ssrc;
-            this.sDatagramPacket=sDatagramPacket;
-            tsPacket=new Timestamp();
-            rDatagramPacket = new DatagramPacket(buffer, buffer.length);
-            tsPacket.setSsrc(ssrc);
-            try{
-                socket=new DatagramSocket(5005);
-            }catch (SocketException socketException){
-                socketException.printStackTrace();
-                Log.d("DEBUG",socketException.toString());
+        MidiSender(MediaClock mediaClock) {
+            this.mediaClock = mediaClock;
+            encoder = new RtpMidiEncoder(eventLoop.dataChannel());
+            encoder.setRunningStatus(runningStatus);
+            encoder.setMtu(mtu);
+            encoder.setJournal(recoveryJournal);
+            pacer = new SysExPacer(encoder);
+            pacer.setRate(bulkSysExRate);
+            pacer.setProgressListener(new SysExPacer.ProgressListener() {
+                @Override
+                public void onProgress(long bytesSent, long bytesPending, long bytesPerSecond) {
+                    Log.d("MIDI", "bulk sysex sent: " + bytesSent + " pending: " + bytesPending
+                            + " rate: " + bytesPerSecond + " B/s");
+                }
+            });
+        }
+
+        void addCommand(byte[] data, int offset, int count, long timestamp) {
+            try {
+                encoder.addCommand(data, offset, count, mediaTime(timestamp));
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
-        @Override
-        public void run(){
+
+        void addSysEx(byte[] data, int offset, int count, boolean start, boolean end, long timestamp) {
+            if (bulkSysEx) {
+                if (pacer.write(data, offset, count, start, end)) {
+                    eventLoop.post(drainTask);
+                }
+                return;
+            }
             try {
+                encoder.addSysEx(data, offset, count, start, end, mediaTime(timestamp));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
 
-                sDatagramPacket.setPort(server.getPort()+1);
-                boolean Received = true;
-                socket.send(sDatagramPacket);
-                int count = 1;
-                do {
-                    try {
-                        buttonState.postValue("Connecting");
-                        socket.receive(rDatagramPacket);
-                    } catch (SocketTimeoutException e) {
-                        Received = false;
-                        socket.send(sDatagramPacket);
-                        count++;
-                        Log.d("DEBUG","Initiator attempt: " + count);
-                    }
-                } while (!Received && count < 12);
+        void cancelSysEx(long timestamp) {
+            if (bulkSysEx) {
+                if (pacer.cancel()) {
+                    eventLoop.post(drainTask);
+                }
+                return;
+            }
+            try {
+                encoder.cancelSysEx(mediaTime(timestamp));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
 
+        /**
+         * Called after the commands of one onSend callback were added.
+         */
+        void commandsAdded() {
+            if (coalesceWindowMs <= 0) {
+                flushEncoder();
+            } else {
+                scheduleFlush();
+            }
+        }
 
+        void scheduleFlush() {
+            synchronized (this) {
+                if (flushScheduled || !encoder.hasPending()) {
+                    return;
+                }
+                flushScheduled = true;
+            }
+            eventLoop.postDelayed(flushTask, coalesceWindowMs);
+        }
 
-                RtpMidiSession rPacket = new RtpMidiSession(new ByteBufferKaitaiStream(buffer));
-                rPacket._read();
-                if (Arrays.equals(rPacket.command(), new byte[]{'O', 'K'})) {
-                    Log.d("DEBUG","\nResponder: OK for MIDI  port Session");
-                    buttonState.postValue("Disconnect");
-                    long offset_estimate=0;
-                    //start processing  MIDI Packets from USB
-                    mMidiPacketProcessor = new MidiPacketProcessor(socket, ssrc, offset_estimate);
-                    mMidiPacketProcessor.start();
+        /**
+         * Converts the nanoTime stamp Android gives a MIDI event to media
+         * clock ticks, so packets carry when the event happened rather than
+         * when it was encoded. Devices that do not stamp events pass 0.
+         */
+        long mediaTime(long timestamp) {
+            return timestamp != 0 ? mediaClock.toTicks(timestamp) : mediaClock.now();
+        }
 
-                    //start Timestamp Synchronization
+        void flushEncoder() {
+            try {
+                encoder.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
 
-                    while (true) {
-
-                            tsPacket.setCount(0);
-                            tsPacket.setTimestamp1(java.lang.System.currentTimeMillis() * 10);
-
-                            byte sPacketByteArray[] = tsPacket._toByteArray();
-                            sDatagramPacket = new DatagramPacket(sPacketByteArray, sPacketByteArray.length);
-
-                            sDatagramPacket.setAddress(server.getHost());
-                            long timestamp3 = 0;
-
-                            sDatagramPacket.setPort(server.getPort()+1);
-                            socket.setSoTimeout(10000);
-                            Received = true;
-                            socket.send(sDatagramPacket);
-                            count = 1;
-                            do {
-                                try {
-                                    socket.receive(rDatagramPacket);
-                                } catch (SocketTimeoutException e) {
-                                    Received = false;
-                                    socket.send(sDatagramPacket);
-                                    count++;
-                                    Log.d("DEBUG","Initiator attempt: " + count);
-                                }
-                            } while (!Received && count < 12);
-
-                            if (Received) {
-                                Timestamp trPacket = new Timestamp(new ByteBufferKaitaiStream(buffer));
-                                trPacket._read();
-                                Log.d("DEBUG","packet received!");
-                                //if (trPacket.count() == 1) {
-                                tsPacket.setCount(2);
-                                tsPacket.setTimestamp1(trPacket.timestamp1());
-                                tsPacket.setTimestamp2(trPacket.timestamp2());
-                                timestamp3 = java.lang.System.currentTimeMillis() * 10;
-                                tsPacket.setTimestamp3(timestamp3);
-                                //}
-                                sPacketByteArray = tsPacket._toByteArray();
-                                sDatagramPacket = new DatagramPacket(sPacketByteArray, sPacketByteArray.length);
-                                //now again send the Timestamp
-                                sDatagramPacket.setPort(server.getPort()+1);
-                                sDatagramPacket.setAddress(server.getHost());
-                                socket.send(sDatagramPacket);
-                                offset_estimate = ((timestamp3 + trPacket.timestamp1()) / 2) - trPacket.timestamp2();
-                                Log.d("DEBUG","offset_estimate: "+offset_estimate);
-                            }
+        void close() {
+            eventLoop.removeCallbacks(flushTask);
+            eventLoop.removeCallbacks(drainTask);
+            pacer.close();
+            Log.d("MIDI", "packets encoded: " + encoder.packetsSent()
+                    + " commands sent: " + encoder.commandsSent()
+                    + " running status bytes saved: " + encoder.runningStatusBytesSaved()
+                    + " bulk sysex dropped: " + pacer.droppedMessages());
+        }
+    }
 
-                            //wait for receive CK time count=0 from the other side the send your time at count=1
-                            socket.setSoTimeout(10000);
-                            Received = false;
-                            try {
-                                socket.receive(rDatagramPacket);
-                                Received = true;
-                            } catch (SocketTimeoutException e) {
-                                Received = false;
-                                Log.d("DEBUG","Didn't receice CK command from responder timedout: ");
-                            }
-                            if (Received) {
-                                Timestamp trPacket = new Timestamp(new ByteBufferKaitaiStream(buffer));
-                                trPacket._read();
-                                Log.d("DEBUG","packet received!");
-                                if (trPacket.count() == 0) {
-                                    tsPacket.setCount(1);
-                                    tsPacket.setTimestamp1(trPacket.timestamp1());
-                                    tsPacket.setTimestamp2(java.lang.System.currentTimeMillis() * 10);
-                                    tsPacket.setTimestamp3(0);
-                                }
-                                sPacketByteArray = tsPacket._toByteArray();
-                                sDatagramPacket = new DatagramPacket(sPacketByteArray, sPacketByteArray.length);
-                                //now again send the Timestamp
-                                sDatagramPacket.setPort(server.getPort()+1);
-                                sDatagramPacket.setAddress(server.getHost());
-                                socket.send(sDatagramPacket);
-                            }
-                            Log.d("DEBUG","Sleeping now..");
-                            sleep(10000);
-                        }
+    /**
+     * MIDI processing for one session: sends the device's MIDI to the peer
+     * through a {@link MidiSender} and queues the peer's MIDI for playout,
+     * with the session's own clock, journal and statistics.
+     */
+    class MidiPacketProcessor {
+        long ssrc;
+        MediaClock mediaClock;
+        ClockSync clockSync;
+        MidiSender sender;
+        RtpMidiEncoder.Peer peer;
+        RtpMidiDecoder decoder;
+        JitterBuffer jitterBuffer;
+        final Runnable playoutTask = new Runnable() {
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                long wait = -1;
+                try {
+                    wait = jitterBuffer.drain(now);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                if (wait >= 0) {
+                    eventLoop.postAt(this, now + wait);
+                }
+            }
+        };
+
+        public MidiPacketProcessor(InetSocketAddress dataAddress, long ssrc, MediaClock mediaClock, ClockSync clockSync,
+                                   MidiDeviceLink link){
+            this.ssrc=ssrc;
+            this.mediaClock=mediaClock;
+            this.clockSync=clockSync;
+            sender = link.sender(mediaClock);
+            // a shared sender runs its own clock, the peer's timestamps are shifted onto ours
+            peer = sender.encoder.addPeer(dataAddress, ssrc, sender.mediaClock.ticksTo(mediaClock));
+            jitterBuffer = new JitterBuffer(link.deviceInput, mediaClock);
+            jitterBuffer.setPlayoutDelay(playoutDelayMs * 1000000L);
+            jitterBuffer.setClockSync(clockSync);
+            decoder = new RtpMidiDecoder(new RtpMidiDecoder.Listener() {
+                @Override
+                public void onMessage(byte[] data, int offset, int count, long timestamp) {
+                    try {
+                        jitterBuffer.add(data, offset, count, timestamp);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Queues the MIDI of an RTP-MIDI data packet received from the peer
+         * for playout into the device's input port. Runs on the event loop.
+         */
+        void receive(byte[] packet, int length) {
+            decoder.decode(packet, 0, length);
+            // the packet may hold messages due before the one playout waits for
+            eventLoop.removeCallbacks(playoutTask);
+            playoutTask.run();
+        }
+
+        /**
+         * Handles the peer's receiver feedback for our packets.
+         */
+        void acknowledge(int seqnum) {
+            sender.encoder.acknowledge(peer, seqnum);
+        }
+
+        void close() {
+            Log.d("MIDI", "midipacketprocessor closed");
+            eventLoop.removeCallbacks(playoutTask);
+            sender.encoder.removePeer(peer);
+            // the last session of a shared sender closes it
+            if (sender.encoder.peerCount() == 0) {
+                sender.close();
+            }
+            Log.d("MIDI", "ssrc: " + ssrc + " packets sent: " + peer.packetsSent() + " send errors: " + peer.sendErrors()
+                    + " malformed packets received: " + decoder.malformedPackets()
+                    + " lost packets: " + decoder.lostPackets()
+                    + " recovered commands: " + decoder.recoveredCommands());
+        }
+    }
 
+    /**
+     * One AppleMIDI session, run on the event loop: invitation on the
+     * control port and then the data port, CK clock sync, MIDI data in both
+     * directions and BY. Every step that waits for the peer is a timer on
+     * the loop rather than a blocking receive. Each session has its own
+     * SSRC, media clock, sync state and MIDI processor.
+     * <p>
+     * A session either initiates, inviting a peer chosen in the UI, or
+     * responds to a peer's invitation, answering its IN with OK on both
+     * ports and its CK count 0 with count 1. The initiator drives the CK
+     * exchanges, so only an initiating session takes clock sync samples.
+     */
+    class Session {
+        static final int STATE_INVITING_CONTROL = 0;
+        static final int STATE_INVITING_DATA = 1;
+        static final int STATE_CONNECTED = 2;
+        static final int STATE_CLOSED = 3;
+        // responder states, waiting for the peer's IN on the control or data port
+        static final int STATE_INVITED_CONTROL = 4;
+        static final int STATE_INVITED_DATA = 5;
+        // CK interval assumed for the peer until it shows a longer one
+        static final long PEER_SYNC_INTERVAL = 10000;
 
+        final InetAddress host;
+        final InetSocketAddress controlAddress;
+        final InetSocketAddress dataAddress;
+        // ours when initiating, the peer's when responding
+        final long initToken;
+        final long ssrc;
+        final boolean responder;
+        long peerSsrc = -1;
+        final MediaClock mediaClock = new MediaClock();
+        final ClockSync clockSync = new ClockSync();
+        final Timestamp tsPacket = new Timestamp();
+        final RtpMidiSession sPacket = new RtpMidiSession();
+        MidiPacketProcessor mMidiPacketProcessor;
+        // set on the event loop, read by buttonText on the UI thread
+        volatile int state;
+        int attempts;
+        // System.nanoTime of the connect attempt, of both ports being set up
+        // and of the first MIDI packet received, 0 until then
+        long startNanos;
+        long connectedNanos;
+        long firstReceivedNanos;
+        // timestamp1 of the CK count 0 awaiting its count 1, -1 if none
+        long syncTimestamp1 = -1;
+        // System.nanoTime of the last packet and the last CK count 0 from the
+        // peer, and the longest time between two of those CKs
+        long lastHeardNanos;
+        long lastPeerSyncNanos;
+        long peerSyncIntervalMs = PEER_SYNC_INTERVAL;
+        final Runnable retryTask = new Runnable() {
+            @Override
+            public void run() {
+                if (responder) {
+                    Log.d("DEBUG", "invitation from " + controlAddress + " not completed");
+                    close(false);
+                    return;
                 }
-                if (Arrays.equals(rPacket.command(), new byte[]{'N', 'O'})) {
-                    Log.d("DEBUG","\nResponder: NO for MIDI  port Session");
+                if (attempts >= maxAttempts) {
+                    Log.d("DEBUG", "no answer from " + controlAddress);
+                    close(state == STATE_CONNECTED);
+                    return;
+                }
+                Log.d("DEBUG", "Initiator attempt: " + (attempts + 1));
+                if (state == STATE_CONNECTED) {
+                    sendSync();
+                } else {
+                    invite();
+                }
+            }
+        };
+        final Runnable syncTask = new Runnable() {
+            @Override
+            public void run() {
+                attempts = 0;
+                sendSync();
+            }
+        };
+        // a responder has no retries watching the peer, this closes the
+        // session once the peer has gone quiet, as if it had sent BY
+        final Runnable livenessTask = new Runnable() {
+            @Override
+            public void run() {
+                long silentMs = (System.nanoTime() - lastHeardNanos) / 1000000L;
+                long timeoutMs = missedSyncs * peerSyncIntervalMs;
+                if (silentMs >= timeoutMs) {
+                    Log.d("DEBUG", "nothing from " + controlAddress + " for " + silentMs + " ms");
+                    close(true);
+                } else {
+                    eventLoop.postDelayed(this, timeoutMs - silentMs);
                 }
-
-            } catch (InterruptedException ie){
-                Log.d("DEBUG","timestampsync thread interrupted");
-            } catch (Exception e){
-                Log.d("DEBUG","Exception at Timestamp:"+e.toString());
-                e.printStackTrace();
-            } finally {
-                mMidiPacketProcessor.interrupt();
-                socket.close();
-                Log.d("DEBUG","socket 5005 closed!");
             }
+        };
+
+        /**
+         * Creates a session that invites the peer at the given control port.
+         */
+        Session(InetAddress host, int port) {
+            this(host, port, new Random().nextInt() & 0xFFFFFFFFL, -1, false);
         }
 
-    }
-    private class MIDISessionTerminator extends Thread {
-        DatagramSocket socket;
-        DatagramPacket sDatagramPacket;
-        RtpMidiSession sPacket;
+        /**
+         * Creates a session answering the invitation of the peer at the
+         * given control port.
+         */
+        Session(InetAddress host, int port, long peerToken, long peerSsrc) {
+            this(host, port, peerToken, peerSsrc, true);
+        }
 
-        @Override
-        public void run() {
-            super.run();
-            midiSessionTermination();
+        private Session(InetAddress host, int port, long token, long peerSsrc, boolean responder) {
+            initToken = token;
+            ssrc = new Random().nextInt() & 0xFFFFFFFFL;
+            this.responder = responder;
+            this.peerSsrc = peerSsrc;
+            this.host = host;
+            controlAddress = new InetSocketAddress(host, port);
+            dataAddress = new InetSocketAddress(host, port + 1);
+            tsPacket.setSsrc(ssrc);
+        }
+
+        void start() {
+            startNanos = System.nanoTime();
+            sessionsByToken.put(initToken, this);
+            state = STATE_INVITING_CONTROL;
+            attempts = 0;
+            invite();
+        }
+
+        private void invite() {
+            attempts++;
+            sendCommand(state == STATE_INVITING_DATA, COMMAND_IN);
+            eventLoop.postDelayed(retryTask, retryDelay());
+        }
+
+        private void sendSync() {
+            attempts++;
+            syncTimestamp1 = mediaClock.now();
+            tsPacket.setCount(0);
+            tsPacket.setTimestamp1(syncTimestamp1);
+            tsPacket.setTimestamp2(0);
+            tsPacket.setTimestamp3(0);
+            send(true, tsPacket);
+            eventLoop.postDelayed(retryTask, retryDelay());
+        }
+
+        /**
+         * @return milliseconds to wait for an answer to the packet just sent,
+         * doubling with each attempt
+         */
+        private long retryDelay() {
+            return Math.min((long) retryTimeoutMs << Math.min(attempts - 1, 16), maxRetryTimeoutMs);
+        }
+
+        private void sendCommand(boolean data, byte[] command) {
+            sPacket.setValues(command, initToken, ssrc, mServiceName);
+            send(data, sPacket);
         }
 
-        public void midiSessionTermination() {
+        private void send(boolean data, KaitaiStruct.ReadWrite packet) {
+            sendBuffer.clear();
+            packet._write(sendBuffer);
+            sendBuffer.flip();
             try {
-                socket = new DatagramSocket(5004);
-                sPacket = new RtpMidiSession();
-                sPacket.setValues(new byte[]{'B', 'Y'}, initToken, ssrc, mServiceName);
-                byte sPacketByteArray[] = sPacket._toByteArray();
-                sDatagramPacket = new DatagramPacket(sPacketByteArray, sPacketByteArray.length);
-                sDatagramPacket.setAddress(server.getHost());
-                sDatagramPacket.setPort(server.getPort());
-                socket.send(sDatagramPacket);
-                socket.close();
-                mTimestampSync.interrupt();
-                mTimestampSync.join();
-                buttonState.postValue("Connect");
-            } catch (Exception e) {
-                Log.d("DEBUG", "Exception at midiSessionTermination:" + e.toString());
+                eventLoop.send(data, sendBuffer, data ? dataAddress : controlAddress);
+            } catch (IOException e) {
+                Log.d("DEBUG", "Exception at Session send:" + e.toString());
                 e.printStackTrace();
             }
         }
-    }
-    private class MIDISessionInitiator extends Thread {
-        DatagramSocket socket;
-        DatagramPacket sDatagramPacket;
-        DatagramPacket rDatagramPacket;
-        RtpMidiSession sPacket;
-        RtpMidiSession rPacket;
-        Timestamp timestamp;
-
-        byte byteArray[];
 
-        @Override
-        public void run() {
-            super.run();
-            midiSessionInitiation();
-        }
-
-        public void midiSessionInitiation(){
-            Random ran = new Random();
-            initToken = Math.abs(ran.nextLong());
-            ssrc = Math.abs(ran.nextLong());
-            try{
-
-                socket = new DatagramSocket(5004);
-                byte[] buffer = new byte[1024];
-
-                sPacket = new RtpMidiSession();
-                sPacket.setValues( new byte[]{'I', 'N'} , initToken, ssrc, mServiceName);
-
-                byte sPacketByteArray[] = sPacket._toByteArray();
-                sDatagramPacket=new DatagramPacket(sPacketByteArray , sPacketByteArray.length);
-                rDatagramPacket=new DatagramPacket(buffer , buffer.length);
-                sDatagramPacket.setAddress(server.getHost());
-                sDatagramPacket.setPort(server.getPort());
-                socket.setSoTimeout(2000);
-                boolean Received=true;
-                socket.send(sDatagramPacket);
-                int count=1;
-                do{
-                    try {
-                        socket.receive(rDatagramPacket);
-                    }catch (SocketTimeoutException e) {
-                        Received = false;
-                        socket.send(sDatagramPacket);
-                        count++;
-                        Log.d("DEBUG","Initiator attempt: "+count);
+        void onPacket(boolean data, byte[] packet, int length) {
+            if (state == STATE_CLOSED) {
+                return;
+            }
+            lastHeardNanos = System.nanoTime();
+            if (data && RtpMidiDecoder.isDataPacket(packet, 0, length)) {
+                if (mMidiPacketProcessor != null) {
+                    if (firstReceivedNanos == 0) {
+                        firstReceivedNanos = System.nanoTime();
+                        Log.d("DEBUG", "first MIDI from " + controlAddress + " after "
+                                + millisSinceStart(firstReceivedNanos) + " ms");
                     }
-                } while (!Received && count < 12);
-
-                if(Received) {
-                    rPacket = new RtpMidiSession(new ByteBufferKaitaiStream(buffer));
-                    rPacket._read();
-                    if (Arrays.equals(rPacket.command(), new byte[]{'O', 'K'})) {
-                        Log.d("DEBUG","Responder: OK");
-                        socket.close();
-                        //now start protocol for MIDI port
-                        mMidiSessionControlPort = new MIDISessionControlPort();
-                        mMidiSessionControlPort.start();
-                        mTimestampSync = new TimestampSync(ssrc,sDatagramPacket);
-                        mTimestampSync.start();
+                    mMidiPacketProcessor.receive(packet, length);
+                }
+                return;
+            }
+            ControlPacketView view = controlView.wrap(packet, length);
+            if (!view.isValid()) {
+                return;
+            }
+            switch (view.command()) {
+                case ControlPacketView.RS:
+                    handleReceiverFeedback(view);
+                    break;
+                case ControlPacketView.CK:
+                    if (data) {
+                        handleSync(view);
                     }
+                    break;
+                default:
+                    handleCommand(data, view.command(), view.ssrc());
+                    break;
+            }
+        }
 
-                    if (Arrays.equals(rPacket.command(), new byte[]{'N', 'O'})){
-                        Log.d("DEBUG","Responder: NO");
-                        socket.close();
-                        buttonState.postValue("Connect");
-                    }
-                    if (Arrays.equals(rPacket.command(), new byte[]{'R', 'L'})){
-                        Log.d("DEBUG","Responder: RL");
-                        socket.close();
+        private void handleCommand(boolean data, int command, long senderSsrc) {
+            if (command == ControlPacketView.IN) {
+                if (!responder) {
+                    return;
+                }
+                // answer repeats too, our OK may have been lost
+                if (!data) {
+                    Log.d("DEBUG","Initiator: IN");
+                    sendCommand(false, COMMAND_OK);
+                    if (state == STATE_INVITED_CONTROL) {
+                        state = STATE_INVITED_DATA;
+                        postButtonState(this);
                     }
-                    if (Arrays.equals(rPacket.command(), new byte[]{'B', 'Y'})) {
-                        Log.d("DEBUG","Responder: BY");
-                        socket.close();
-                        buttonState.postValue("Connect");
-                        Log.d("DEBUG", "socket 5004 closed!");
+                } else if (data && state != STATE_INVITED_CONTROL) {
+                    Log.d("DEBUG","Initiator: IN for MIDI port");
+                    sendCommand(true, COMMAND_OK);
+                    if (state == STATE_INVITED_DATA) {
+                        eventLoop.removeCallbacks(retryTask);
+                        connected();
                     }
                 }
-                if(!Received){
-                    buttonState.postValue("Connect");
+            } else if (command == ControlPacketView.OK) {
+                if (!data && state == STATE_INVITING_CONTROL) {
+                    Log.d("DEBUG","Responder: OK");
+                    eventLoop.removeCallbacks(retryTask);
+                    sessionsByToken.remove(initToken);
+                    peerSsrc = senderSsrc;
+                    sessionsBySsrc.put(peerSsrc, this);
+                    state = STATE_INVITING_DATA;
+                    attempts = 0;
+                    invite();
+                } else if (data && state == STATE_INVITING_DATA) {
+                    Log.d("DEBUG","\nResponder: OK for MIDI  port Session");
+                    eventLoop.removeCallbacks(retryTask);
+                    connected();
+                    //start Timestamp Synchronization
+                    attempts = 0;
+                    sendSync();
                 }
-            } catch (Exception e){
-                Log.d("DEBUG","Exception at MidiSessionInit:"+e.toString());
-                e.printStackTrace();
+            } else if (command == ControlPacketView.NO) {
+                Log.d("DEBUG","Responder: NO");
+                close(false);
+            } else if (command == ControlPacketView.BY) {
+                Log.d("DEBUG","Responder: BY");
+                close(false);
             }
+        }
 
+        /**
+         * Starts MIDI in both directions once both ports are set up.
+         */
+        private void connected() {
+            state = STATE_CONNECTED;
+            connectedNanos = System.nanoTime();
+            Log.d("DEBUG", "connected to " + controlAddress + " after " + millisSinceStart(connectedNanos) + " ms");
+            postButtonState(this);
+            //start processing  MIDI Packets from USB
+            if (deviceLink == null) {
+                deviceLink = new MidiDeviceLink();
+                deviceLink.open();
+            }
+            mMidiPacketProcessor = new MidiPacketProcessor(dataAddress, ssrc, mediaClock, clockSync,
+                    deviceLink);
+            deviceLink.add(mMidiPacketProcessor);
+            if (responder) {
+                eventLoop.postDelayed(livenessTask, missedSyncs * peerSyncIntervalMs);
+            }
         }
-    }
-    private class MIDISessionControlPort extends Thread {
-        DatagramSocket socket;
-        DatagramPacket rDatagramPacket;
-        RtpMidiSession rPacket;
-        byte[] buffer;
 
-        MIDISessionControlPort(){
-            try{
-                socket = new DatagramSocket(5004);
-                buffer = new byte[1024];
-                rDatagramPacket = new DatagramPacket(buffer, buffer.length);
-            }catch (SocketException socketException){
-                socketException.printStackTrace();
-                Log.d("DEBUG",socketException.toString());
+        /**
+         * Handles CK: answers the peer's count 0 with count 1, and completes
+         * our own exchange on count 1 by sending count 2 and taking a sample.
+         * A count 1 that does not echo the count 0 still outstanding, late
+         * or duplicated, is ignored.
+         */
+        private void handleSync(ControlPacketView trPacket) {
+            if (trPacket.count() == 0) {
+                if (lastPeerSyncNanos != 0) {
+                    peerSyncIntervalMs = Math.max(peerSyncIntervalMs,
+                            (lastHeardNanos - lastPeerSyncNanos) / 1000000L);
+                }
+                lastPeerSyncNanos = lastHeardNanos;
+                tsPacket.setCount(1);
+                tsPacket.setTimestamp1(trPacket.timestamp1());
+                tsPacket.setTimestamp2(mediaClock.now());
+                tsPacket.setTimestamp3(0);
+                send(true, tsPacket);
+            } else if (trPacket.count() == 1 && state == STATE_CONNECTED
+                    && syncTimestamp1 >= 0 && trPacket.timestamp1() == syncTimestamp1) {
+                syncTimestamp1 = -1;
+                long timestamp3 = mediaClock.now();
+                tsPacket.setCount(2);
+                tsPacket.setTimestamp1(trPacket.timestamp1());
+                tsPacket.setTimestamp2(trPacket.timestamp2());
+                tsPacket.setTimestamp3(timestamp3);
+                send(true, tsPacket);
+                clockSync.addSample(trPacket.timestamp1(), trPacket.timestamp2(), timestamp3);
+                Log.d("DEBUG","offset: " + clockSync.offset(timestamp3) + " drift: " + clockSync.drift()
+                        + " rtt: " + clockSync.rtt() + " jitter: " + clockSync.jitter());
+                eventLoop.removeCallbacks(retryTask);
+                eventLoop.removeCallbacks(syncTask);
+                eventLoop.postDelayed(syncTask, clockSync.nextInterval());
             }
         }
 
-        @Override
-        public void run() {
-            try {
-                while (!this.isInterrupted()) {
-
-                        socket.setSoTimeout(1000);
-                        boolean Received = true;
-                        try {
-                            socket.receive(rDatagramPacket);
-                        } catch (Exception e) {
-                            Received = false;
-                        }
-                        if (Received) {
-                            rPacket = new RtpMidiSession(new ByteBufferKaitaiStream(buffer));
-                            rPacket._read();
-
-                            if (Arrays.equals(rPacket.command(), new byte[]{'B', 'Y'})) {
-                                Log.d("DEBUG", "Responder: BY");
-                                socket.close();
-                                buttonState.postValue("Disconnecting");
-                                new MIDISessionTerminator().start();
-                                Log.d("DEBUG", "socket 5004 closed!");
-                            }
-                        }
+        /**
+         * Handles an AppleMIDI RS (receiver feedback) packet, which may arrive
+         * on either port, by moving the recovery journal checkpoint.
+         */
+        private void handleReceiverFeedback(ControlPacketView feedback) {
+            if (mMidiPacketProcessor != null) {
+                mMidiPacketProcessor.acknowledge(feedback.seqnum());
+            }
+        }
 
+        /**
+         * Ends the session, telling the peer with BY if asked to.
+         */
+        void close(boolean sendBye) {
+            if (state == STATE_CLOSED) {
+                return;
+            }
+            eventLoop.removeCallbacks(retryTask);
+            eventLoop.removeCallbacks(syncTask);
+            eventLoop.removeCallbacks(livenessTask);
+            if (sendBye) {
+                sendCommand(false, COMMAND_BY);
+            }
+            if (mMidiPacketProcessor != null) {
+                long firstSent = mMidiPacketProcessor.peer.firstPacketNanos();
+                long firstMidi = firstSent == 0 || (firstReceivedNanos != 0 && firstReceivedNanos < firstSent)
+                        ? firstReceivedNanos : firstSent;
+                Log.d("DEBUG", "session " + controlAddress + " time to connect: " + millisSinceStart(connectedNanos)
+                        + " ms, to first MIDI: " + (firstMidi != 0 ? millisSinceStart(firstMidi) + " ms" : "none"));
+                if (deviceLink.remove(mMidiPacketProcessor) == 0) {
+                    deviceLink.close();
+                    deviceLink = null;
                 }
-            } catch (SocketException e) {
-                e.printStackTrace();
-            } finally {
-                socket.close();
+                mMidiPacketProcessor.close();
+            }
+            state = STATE_CLOSED;
+            if (sessionsByToken.get(initToken) == this) {
+                sessionsByToken.remove(initToken);
+            }
+            if (sessionsBySsrc.get(peerSsrc) == this) {
+                sessionsBySsrc.remove(peerSsrc);
+            }
+            sessions.remove(this);
+            postButtonState(this);
+        }
+
+        private long millisSinceStart(long nanos) {
+            return (nanos - startNanos) / 1000000L;
+        }
+
+        String buttonText() {
+            switch (state) {
+                case STATE_CONNECTED:
+                    return "Disconnect";
+                case STATE_CLOSED:
+                    return "Connect";
+                default:
+                    return "Connecting";
             }
         }
     }
@@ -0,0 +1,341 @@
+package com.minz.midi;
+
+/**
+ * Sender side RTP-MIDI recovery journal (RFC 6295 section 4 and appendix A).
+ * Tracks the channel state changed by sent packets and encodes the channel
+ * journals with chapters P (program), C (controllers), W (pitch wheel),
+ * N (notes) and T (channel aftertouch), so a receiver that lost packets
+ * can restore that state from the next packet it gets.
+ * <p>
+ * State is kept in fixed primitive arrays indexed by channel and note or
+ * controller number, together with the extended sequence number of the
+ * packet that last changed it. Per channel lists of the notes and
+ * controllers changed after the checkpoint keep encoding proportional to
+ * the recent activity. {@link #setCheckpoint} drops older entries.
+ */
+public class RecoveryJournal {
+    static final int CHANNELS = 16;
+    // LEN = 127 with LOW = 15 and HIGH = 0 has a special meaning, so stay below it
+    static final int MAX_NOTE_LOGS = 126;
+
+    static final int JOURNAL_A = 0x20;
+    static final int CHAPTER_P = 0x80;
+    static final int CHAPTER_C = 0x40;
+    static final int CHAPTER_W = 0x10;
+    static final int CHAPTER_N = 0x08;
+    static final int CHAPTER_T = 0x02;
+
+    static final int BANK_MSB = 0;
+    static final int BANK_LSB = 32;
+    // bank controller not sent before the program change
+    static final byte NO_BANK = -1;
+
+    private final int[] noteSeq = new int[CHANNELS * 128];
+    private final byte[] noteVelocity = new byte[CHANNELS * 128];
+    private final byte[] notes = new byte[CHANNELS * 128];
+    private final int[] noteCount = new int[CHANNELS];
+
+    private final int[] controllerSeq = new int[CHANNELS * 128];
+    private final byte[] controllerValue = new byte[CHANNELS * 128];
+    private final byte[] controllers = new byte[CHANNELS * 128];
+    private final int[] controllerCount = new int[CHANNELS];
+
+    private final int[] programSeq = new int[CHANNELS];
+    private final byte[] program = new byte[CHANNELS];
+    // bank select values in effect when the program was changed
+    private final byte[] programBankMsb = new byte[CHANNELS];
+    private final byte[] programBankLsb = new byte[CHANNELS];
+    private final int[] wheelSeq = new int[CHANNELS];
+    private final byte[] wheelFirst = new byte[CHANNELS];
+    private final byte[] wheelSecond = new byte[CHANNELS];
+    private final int[] pressureSeq = new int[CHANNELS];
+    private final byte[] pressure = new byte[CHANNELS];
+
+    // last packet the journal no longer covers; the checkpoint packet of
+    // RFC 6295, the first one covered, is the one after it
+    private int checkpoint;
+    // writes the bit-packed chapter fields
+    private final BitCursor out = new BitCursor();
+
+    /**
+     * Records a channel voice command sent in the packet with the given
+     * extended sequence number.
+     * @param data buffer holding the complete command, status byte included
+     */
+    public void record(int seq, byte[] data, int offset) {
+        int status = data[offset] & 0xFF;
+        int channel = status & 0x0F;
+        switch (status & 0xF0) {
+            case 0x80:
+                note(seq, channel, data[offset + 1], 0);
+                break;
+            case 0x90:
+                note(seq, channel, data[offset + 1], data[offset + 2]);
+                break;
+            case 0xB0:
+                int i = (channel << 7) | (data[offset + 1] & 0x7F);
+                if (controllerSeq[i] <= checkpoint) {
+                    controllers[(channel << 7) + controllerCount[channel]++] = data[offset + 1];
+                }
+                controllerSeq[i] = seq;
+                controllerValue[i] = data[offset + 2];
+                break;
+            case 0xC0:
+                programSeq[channel] = seq;
+                program[channel] = data[offset + 1];
+                programBankMsb[channel] = bank(channel, BANK_MSB);
+                programBankLsb[channel] = bank(channel, BANK_LSB);
+                break;
+            case 0xD0:
+                pressureSeq[channel] = seq;
+                pressure[channel] = data[offset + 1];
+                break;
+            case 0xE0:
+                wheelSeq[channel] = seq;
+                wheelFirst[channel] = data[offset + 1];
+                wheelSecond[channel] = data[offset + 2];
+                break;
+            default:
+                break;
+        }
+    }
+
+    private byte bank(int channel, int number) {
+        int i = (channel << 7) | number;
+        return controllerSeq[i] != 0 ? controllerValue[i] : NO_BANK;
+    }
+
+    private void note(int seq, int channel, byte note, int velocity) {
+        int i = (channel << 7) | (note & 0x7F);
+        if (noteSeq[i] <= checkpoint) {
+            notes[(channel << 7) + noteCount[channel]++] = note;
+        }
+        noteSeq[i] = seq;
+        noteVelocity[i] = (byte) velocity;
+    }
+
+    /**
+     * Moves the checkpoint, so the journal only covers packets sent after
+     * the packet with the given extended sequence number.
+     */
+    public void setCheckpoint(int seq) {
+        if (seq <= checkpoint) {
+            return;
+        }
+        checkpoint = seq;
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            noteCount[channel] = trim(notes, noteSeq, channel, noteCount[channel]);
+            controllerCount[channel] = trim(controllers, controllerSeq, channel, controllerCount[channel]);
+        }
+    }
+
+    private int trim(byte[] list, int[] seqs, int channel, int count) {
+        int base = channel << 7;
+        int kept = 0;
+        for (int k = 0; k < count; k++) {
+            byte number = list[base + k];
+            if (seqs[base | number] > checkpoint) {
+                list[base + kept++] = number;
+            }
+        }
+        return kept;
+    }
+
+    public int checkpoint() { return checkpoint; }
+
+    /**
+     * @return extended sequence number of the checkpoint packet written in
+     * the journal header: the first packet the journal covers
+     */
+    public int checkpointPacket() { return checkpoint + 1; }
+
+    /**
+     * Writes the recovery journal for the packet with the given extended
+     * sequence number. Commands sent in that packet itself are left out.
+     * @param limit index just past the room available in buf
+     * @return number of bytes written, 0 if there is nothing to journal,
+     * or -1 if the journal does not fit
+     */
+    public int encode(byte[] buf, int pos, int limit, int seq) {
+        int start = pos;
+        pos += 3;
+        int channels = 0;
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            int n = encodeChannel(buf, pos, limit, seq, channel);
+            if (n < 0) {
+                return -1;
+            }
+            if (n > 0) {
+                pos += n;
+                channels++;
+            }
+        }
+        if (channels == 0) {
+            return 0;
+        }
+        out.reset(buf, start);
+        out.writeFlag(false);
+        out.writeFlag(false);
+        out.writeFlag(true);
+        out.writeFlag(false);
+        out.writeU4(channels - 1);
+        out.writeU16(checkpointPacket());
+        return pos - start;
+    }
+
+    private int encodeChannel(byte[] buf, int pos, int limit, int seq, int channel) {
+        int start = pos;
+        int base = channel << 7;
+        int toc = 0;
+        if (pos + 3 > limit) {
+            return -1;
+        }
+        out.reset(buf, pos + 3);
+
+        if (covered(programSeq[channel], seq)) {
+            if (out.position() + 3 > limit) {
+                return -1;
+            }
+            toc |= CHAPTER_P;
+            // B covers both bank controllers, one never sent is coded as 0,
+            // its power-on value
+            byte msb = programBankMsb[channel];
+            byte lsb = programBankLsb[channel];
+            out.writeOctet(0, program[channel]);
+            out.writeOctet(msb != NO_BANK || lsb != NO_BANK ? 0x80 : 0, msb != NO_BANK ? msb : 0);
+            out.writeOctet(0, lsb != NO_BANK ? lsb : 0);
+        }
+
+        int count = controllerCount[channel];
+        if (count > 0) {
+            int header = out.position();
+            if (header + 1 + 2 * count > limit) {
+                return -1;
+            }
+            out.skip(1);
+            int logs = 0;
+            for (int k = 0; k < count; k++) {
+                int number = controllers[base + k];
+                if (controllerSeq[base | number] < seq) {
+                    out.writeOctet(0, number);
+                    out.writeOctet(0, controllerValue[base | number]);
+                    logs++;
+                }
+            }
+            if (logs > 0) {
+                toc |= CHAPTER_C;
+                int end = out.position();
+                out.seek(header);
+                out.writeOctet(0, logs - 1);
+                out.seek(end);
+            } else {
+                out.seek(header);
+            }
+        }
+
+        if (covered(wheelSeq[channel], seq)) {
+            if (out.position() + 2 > limit) {
+                return -1;
+            }
+            toc |= CHAPTER_W;
+            out.writeOctet(0, wheelFirst[channel]);
+            out.writeOctet(0, wheelSecond[channel]);
+        }
+
+        count = noteCount[channel];
+        if (count > 0) {
+            int n = encodeNotes(limit, seq, channel, count);
+            if (n < 0) {
+                return -1;
+            }
+            if (n > 0) {
+                toc |= CHAPTER_N;
+            }
+        }
+
+        if (covered(pressureSeq[channel], seq)) {
+            if (out.position() + 1 > limit) {
+                return -1;
+            }
+            toc |= CHAPTER_T;
+            out.writeOctet(0, pressure[channel]);
+        }
+
+        if (toc == 0) {
+            return 0;
+        }
+        int length = out.position() - start;
+        out.seek(start);
+        out.writeFlag(false);
+        out.writeU4(channel);
+        out.writeFlag(false);
+        out.writeU10(length);
+        out.writeU8(toc);
+        return length;
+    }
+
+    /**
+     * Writes chapter N at the cursor: a log for every note still sounding,
+     * followed by the OFFBITS octets for notes turned off, covering octets
+     * LOW to HIGH. Leaves the cursor after the chapter.
+     */
+    private int encodeNotes(int limit, int seq, int channel, int count) {
+        int base = channel << 7;
+        int start = out.position();
+        if (start + 2 > limit) {
+            return -1;
+        }
+        out.skip(2);
+        int logs = 0;
+        int low = 15;
+        int high = 0;
+        for (int k = 0; k < count; k++) {
+            int number = notes[base + k];
+            if (noteSeq[base | number] >= seq) {
+                continue;
+            }
+            if (noteVelocity[base | number] != 0) {
+                if (logs == MAX_NOTE_LOGS) {
+                    continue;
+                }
+                if (out.position() + 2 > limit) {
+                    return -1;
+                }
+                out.writeOctet(0, number);
+                out.writeOctet(0x80, noteVelocity[base | number]);
+                logs++;
+            } else {
+                low = Math.min(low, number >> 3);
+                high = Math.max(high, number >> 3);
+            }
+        }
+        if (low <= high) {
+            int offbits = out.position();
+            if (offbits + high - low + 1 > limit) {
+                return -1;
+            }
+            out.writeZeros(high - low + 1);
+            for (int k = 0; k < count; k++) {
+                int number = notes[base + k];
+                if (noteSeq[base | number] < seq && noteVelocity[base | number] == 0) {
+                    out.setBit(offbits, number - (low << 3));
+                }
+            }
+        } else if (logs == 0) {
+            out.seek(start);
+            return 0;
+        }
+        int end = out.position();
+        out.seek(start);
+        out.writeFlag(false);
+        out.writeU7(logs);
+        out.writeU4(low);
+        out.writeU4(high);
+        out.seek(end);
+        return end - start;
+    }
+
+    private boolean covered(int entrySeq, int seq) {
+        return entrySeq > checkpoint && entrySeq < seq;
+    }
+}
@@ -0,0 +1,304 @@
+package com.minz.midi;
+
+import java.io.IOException;
+
+
+/**
+ * rtpmididata
+ * <p>
+ * Written by hand after rtpmididata.ksy, in the shape of the generated
+ * structs, rather than generated: the spec keeps the command list and the
+ * journal chapters as raw byte ranges, and this class does not copy them
+ * out either. Reading records where they are in the stream, and writing
+ * takes them as a range of a caller's array. CSRCs and the header
+ * extension are skipped. The static accessors read and patch the
+ * fixed-offset RTP header fields of a packet in place. Regenerating from
+ * the spec would lose them, keep the two in step by hand.
+ */
+public class RtpMidiData extends KaitaiStruct.ReadWrite {
+    public static final int RTP_VERSION = 2;
+    public static final int PAYLOAD_TYPE = 0x61;
+    public static final int HEADER_SIZE = 12;
+    public static final int FLAG_B = 0x80;
+    public static final int FLAG_J = 0x40;
+    public static final int FLAG_Z = 0x20;
+    public static final int FLAG_P = 0x10;
+    public static final int JOURNAL_HEADER_SIZE = 3;
+
+    public static RtpMidiData fromFile(String fileName) throws IOException {
+        return new RtpMidiData(new ByteBufferKaitaiStream(fileName));
+    }
+    public RtpMidiData() {
+        this(null, null, null);
+        this.version = RTP_VERSION;
+        this.payloadType = PAYLOAD_TYPE;
+    }
+
+    public RtpMidiData(KaitaiStream _io) {
+        this(_io, null, null);
+    }
+
+    public RtpMidiData(KaitaiStream _io, KaitaiStruct.ReadWrite _parent) {
+        this(_io, _parent, null);
+    }
+
+    public RtpMidiData(KaitaiStream _io, KaitaiStruct.ReadWrite _parent, RtpMidiData _root) {
+        super(_io);
+        this._parent = _parent;
+        this._root = _root == null ? this : _root;
+    }
+    public void _read() {
+        int start = this._io.pos();
+        this.version = (int) this._io.readBitsInt(2);
+        if (!(version() == RTP_VERSION)) {
+            throw new KaitaiStream.ValidationNotEqualError(RTP_VERSION, version(), _io(), "/seq/0");
+        }
+        this.padding = this._io.readBitsInt(1) != 0;
+        this.extension = this._io.readBitsInt(1) != 0;
+        this.csrcCount = (int) this._io.readBitsInt(4);
+        this.marker = this._io.readBitsInt(1) != 0;
+        this.payloadType = (int) this._io.readBitsInt(7);
+        this._io.alignToByte();
+        this.sequenceNumber = this._io.readU2be();
+        this.timestamp = this._io.readU4be();
+        this.ssrc = this._io.readU4be();
+        this._io.seek(this._io.pos() + 4 * csrcCount());
+        if (extension()) {
+            this._io.seek(this._io.pos() + 2);
+            int words = this._io.readU2be();
+            this._io.seek(this._io.pos() + 4 * words);
+        }
+        int end = (int) this._io.size();
+        if (padding()) {
+            end -= byteAt(end - 1);
+        }
+        int flags = this._io.readU1();
+        this.flagB = (flags & FLAG_B) != 0;
+        this.flagJ = (flags & FLAG_J) != 0;
+        this.flagZ = (flags & FLAG_Z) != 0;
+        this.flagP = (flags & FLAG_P) != 0;
+        this.listLength = flags & 0x0F;
+        if (flagB()) {
+            this.listLength = (listLength << 8) | this._io.readU1();
+        }
+        this.listOffset = this._io.pos();
+        if (listOffset + listLength > end) {
+            throw new KaitaiStream.ValidationNotEqualError(end - listOffset, listLength, _io(), "/seq/16");
+        }
+        this._io.seek(listOffset + listLength);
+        this.journalOffset = this._io.pos();
+        this.journalLength = 0;
+        if (flagJ()) {
+            if (end - journalOffset < JOURNAL_HEADER_SIZE) {
+                throw new KaitaiStream.ValidationNotEqualError(JOURNAL_HEADER_SIZE, end - journalOffset, _io(), "/seq/17");
+            }
+            int journalFlags = this._io.readU1();
+            this.journalFlags = journalFlags & 0xF0;
+            this.totchan = journalFlags & 0x0F;
+            this.checkpointSeqnum = this._io.readU2be();
+            this.journalLength = end - journalOffset;
+        }
+        this._io.seek(end);
+        this.packetLength = this._io.pos() - start;
+    }
+
+    private int byteAt(int pos) {
+        int saved = this._io.pos();
+        this._io.seek(pos);
+        int b = this._io.readU1();
+        this._io.seek(saved);
+        return b;
+    }
+
+    public void _write() {
+        this._io.writeU1(RTP_VERSION << 6);
+        this._io.writeU1((marker() ? 0x80 : 0) | payloadType());
+        this._io.writeU2be(sequenceNumber());
+        this._io.writeU4be(timestamp());
+        this._io.writeU4be(ssrc());
+        int flags = (flagB() ? FLAG_B : 0) | (flagJ() ? FLAG_J : 0) | (flagZ() ? FLAG_Z : 0) | (flagP() ? FLAG_P : 0);
+        if (flagB()) {
+            this._io.writeU1(flags | (listLength() >> 8));
+            this._io.writeU1(listLength() & 0xFF);
+        } else {
+            this._io.writeU1(flags | listLength());
+        }
+        this._io.writeBytes(listData, listOffset, listLength);
+        if (flagJ()) {
+            this._io.writeBytes(journalData, journalOffset, journalLength);
+        }
+    }
+
+    public void _check() {
+        if (csrcCount() != 0)
+            throw new ConsistencyError("csrc_count", csrcCount(), 0);
+        if (extension() || padding())
+            throw new ConsistencyError("extension", "" + extension(), "false");
+        if (listLength() > (flagB() ? 0x0FFF : 0x0F))
+            throw new ConsistencyError("list_length", listLength(), flagB() ? 0x0FFF : 0x0F);
+        if (flagJ() && journalLength() < JOURNAL_HEADER_SIZE)
+            throw new ConsistencyError("journal", journalLength(), JOURNAL_HEADER_SIZE);
+    }
+
+    public int _size() {
+        return HEADER_SIZE + (flagB() ? 2 : 1) + listLength() + (flagJ() ? journalLength() : 0);
+    }
+
+    /**
+     * Sets the command list to write, a range of the given array.
+     */
+    public void setCommandList(byte[] data, int offset, int length) {
+        this.listData = data;
+        this.listOffset = offset;
+        this.listLength = length;
+        this.flagB = length > 0x0F;
+    }
+
+    /**
+     * Sets the recovery journal to write, journal header included, a range
+     * of the given array. An empty range clears the J flag.
+     */
+    public void setJournal(byte[] data, int offset, int length) {
+        this.journalData = data;
+        this.journalOffset = offset;
+        this.journalLength = length;
+        this.flagJ = length > 0;
+        if (length >= JOURNAL_HEADER_SIZE) {
+            this.journalFlags = data[offset] & 0xF0;
+            this.totchan = data[offset] & 0x0F;
+            this.checkpointSeqnum = ((data[offset + 1] & 0xFF) << 8) | (data[offset + 2] & 0xFF);
+        }
+    }
+
+    /**
+     * @return true if the range holds at least an RTP version 2 header and
+     * the command section header byte
+     */
+    public static boolean isValid(byte[] packet, int offset, int length) {
+        return length >= HEADER_SIZE + 1 && (packet[offset] & 0xC0) == RTP_VERSION << 6;
+    }
+
+    public static int sequenceNumber(byte[] packet, int offset) {
+        return ((packet[offset + 2] & 0xFF) << 8) | (packet[offset + 3] & 0xFF);
+    }
+
+    public static long timestamp(byte[] packet, int offset) {
+        return readU4(packet, offset + 4);
+    }
+
+    public static long ssrc(byte[] packet, int offset) {
+        return readU4(packet, offset + 8);
+    }
+
+    /**
+     * @return offset of the command section, after any CSRCs and header
+     * extension, or -1 if they run past the given length
+     */
+    public static int commandSectionOffset(byte[] packet, int offset, int length) {
+        int pos = offset + HEADER_SIZE + 4 * (packet[offset] & 0x0F);
+        if ((packet[offset] & 0x10) != 0) {
+            if (pos + 4 > offset + length) {
+                return -1;
+            }
+            pos += 4 + 4 * (((packet[pos + 2] & 0xFF) << 8) | (packet[pos + 3] & 0xFF));
+        }
+        return pos < offset + length ? pos : -1;
+    }
+
+    /**
+     * Writes the first two header bytes: version 2, no padding, extension,
+     * CSRCs or marker, payload type 97.
+     */
+    public static void putHeader(byte[] packet, int offset) {
+        packet[offset] = (byte) (RTP_VERSION << 6);
+        packet[offset + 1] = (byte) PAYLOAD_TYPE;
+    }
+
+    public static void putSequenceNumber(byte[] packet, int offset, int seq) {
+        packet[offset + 2] = (byte) (seq >> 8);
+        packet[offset + 3] = (byte) seq;
+    }
+
+    public static void putTimestamp(byte[] packet, int offset, long timestamp) {
+        putU4(packet, offset + 4, timestamp);
+    }
+
+    public static void putSsrc(byte[] packet, int offset, long ssrc) {
+        putU4(packet, offset + 8, ssrc);
+    }
+
+    private static long readU4(byte[] b, int pos) {
+        return ((b[pos] & 0xFFL) << 24) | ((b[pos + 1] & 0xFF) << 16) | ((b[pos + 2] & 0xFF) << 8) | (b[pos + 3] & 0xFF);
+    }
+
+    private static void putU4(byte[] b, int pos, long v) {
+        b[pos] = (byte) (v >> 24);
+        b[pos + 1] = (byte) (v >> 16);
+        b[pos + 2] = (byte) (v >> 8);
+        b[pos + 3] = (byte) v;
+    }
+
+    private int version;
+    private boolean padding;
+    private boolean extension;
+    private int csrcCount;
+    private boolean marker;
+    private int payloadType;
+    private int sequenceNumber;
+    private long timestamp;
+    private long ssrc;
+    private boolean flagB;
+    private boolean flagJ;
+    private boolean flagZ;
+    private boolean flagP;
+    private int listLength;
+    private int listOffset;
+    private byte[] listData;
+    private int journalFlags;
+    private int totchan;
+    private int checkpointSeqnum;
+    private int journalOffset;
+    private int journalLength;
+    private byte[] journalData;
+    private int packetLength;
+    private RtpMidiData _root;
+    private KaitaiStruct.ReadWrite _parent;
+    public int version() { return version; }
+    public boolean padding() { return padding; }
+    public boolean extension() { return extension; }
+    public int csrcCount() { return csrcCount; }
+    public boolean marker() { return marker; }
+    public void setMarker(boolean _v) { marker = _v; }
+    public int payloadType() { return payloadType; }
+    public void setPayloadType(int _v) { payloadType = _v; }
+    public int sequenceNumber() { return sequenceNumber; }
+    public void setSequenceNumber(int _v) { sequenceNumber = _v; }
+    public long timestamp() { return timestamp; }
+    public void setTimestamp(long _v) { timestamp = _v; }
+    public long ssrc() { return ssrc; }
+    public void setSsrc(long _v) { ssrc = _v; }
+    public boolean flagB() { return flagB; }
+    public void setFlagB(boolean _v) { flagB = _v; }
+    public boolean flagJ() { return flagJ; }
+    public boolean flagZ() { return flagZ; }
+    public void setFlagZ(boolean _v) { flagZ = _v; }
+    public boolean flagP() { return flagP; }
+    public void setFlagP(boolean _v) { flagP = _v; }
+    public int listLength() { return listLength; }
+    /** @return stream position of the command list after reading */
+    public int listOffset() { return listOffset; }
+    /** @return journal S, Y, A and H flags, in the high nibble */
+    public int journalFlags() { return journalFlags; }
+    public int totchan() { return totchan; }
+    public int checkpointSeqnum() { return checkpointSeqnum; }
+    /** @return stream position of the journal header after reading */
+    public int journalOffset() { return journalOffset; }
+    /** @return journal length, header included, or 0 without J flag */
+    public int journalLength() { return journalLength; }
+    /** @return bytes the packet took in the stream after reading */
+    public int packetLength() { return packetLength; }
+    public RtpMidiData _root() { return _root; }
+    public void set_root(RtpMidiData _v) { _root = _v; }
+    public KaitaiStruct.ReadWrite _parent() { return _parent; }
+    public void set_parent(KaitaiStruct.ReadWrite _v) { _parent = _v; }
+}
@@ -0,0 +1,266 @@
+package com.minz.midi;
+
+/**
+ * Decodes incoming RTP-MIDI (RFC 6295) data packets into MIDI messages.
+ * The command list is walked in place: messages are handed to the
+ * {@link Listener} as ranges of the packet buffer, and only commands
+ * coded with running status are rebuilt, in a buffer owned by the decoder.
+ * System Exclusive segments are passed on as the byte stream they stand
+ * for, so a message split across packets arrives in order.
+ * <p>
+ * Sequence numbers are extended to 32 bits to spot lost packets. When the
+ * packet after a gap carries a recovery journal, {@link JournalRecovery}
+ * first restores the channel state the lost packets changed. Packets older
+ * than the newest one decoded are dropped, their content is either stale or
+ * already recovered.
+ */
+public class RtpMidiDecoder {
+    public interface Listener {
+        /**
+         * Called for every decoded message. The buffer is only valid for the
+         * duration of the call.
+         * @param timestamp RTP timestamp of the packet plus the delta time of
+         * the command, in the sender's 100 microsecond units
+         */
+        void onMessage(byte[] data, int offset, int count, long timestamp);
+    }
+
+    static final int FLAG_B = 0x80;
+    static final int FLAG_J = 0x40;
+    static final int FLAG_Z = 0x20;
+    static final int FLAG_P = 0x10;
+
+    private final Listener listener;
+    private final JournalRecovery recovery = new JournalRecovery();
+    private final byte[] message = new byte[3];
+    private int seqnum;
+    // extended sequence number of the newest packet decoded
+    private int extendedSeq;
+    private boolean started;
+    private long lostPackets;
+    private long latePackets;
+    private long timestamp;
+    private long ssrc;
+    private boolean hasJournal;
+    private int journalOffset;
+    private long malformedPackets;
+
+    public RtpMidiDecoder(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return true if the packet looks like an RTP-MIDI data packet rather
+     * than an AppleMIDI session command
+     */
+    public static boolean isDataPacket(byte[] packet, int offset, int length) {
+        return RtpMidiData.isValid(packet, offset, length);
+    }
+
+    /**
+     * Decodes one packet, passing its messages to the listener.
+     * @return false if the packet is malformed; messages before the error
+     * have already been passed on
+     */
+    public boolean decode(byte[] packet, int offset, int length) {
+        int end = offset + length;
+        if (!isDataPacket(packet, offset, length)) {
+            malformedPackets++;
+            return false;
+        }
+        int seqnum = RtpMidiData.sequenceNumber(packet, offset);
+        int seq = extendedSeq + (short) (seqnum - extendedSeq);
+        boolean gap = false;
+        if (started) {
+            if (seq <= extendedSeq) {
+                latePackets++;
+                return true;
+            }
+            if (seq > extendedSeq + 1) {
+                lostPackets += seq - extendedSeq - 1;
+                gap = true;
+            }
+        }
+        started = true;
+        extendedSeq = seq;
+        this.seqnum = seqnum;
+        timestamp = RtpMidiData.timestamp(packet, offset);
+        ssrc = RtpMidiData.ssrc(packet, offset);
+        int pos = RtpMidiData.commandSectionOffset(packet, offset, length);
+        if (pos < 0) {
+            malformedPackets++;
+            return false;
+        }
+        int flags = packet[pos] & 0xFF;
+        int listLength = flags & 0x0F;
+        pos++;
+        if ((flags & FLAG_B) != 0) {
+            if (pos >= end) {
+                malformedPackets++;
+                return false;
+            }
+            listLength = (listLength << 8) | (packet[pos++] & 0xFF);
+        }
+        int listEnd = pos + listLength;
+        if (listEnd > end) {
+            malformedPackets++;
+            return false;
+        }
+        hasJournal = (flags & FLAG_J) != 0;
+        journalOffset = listEnd;
+        if (gap) {
+            if (hasJournal && !recovery.recover(packet, listEnd, end, timestamp, listener)) {
+                malformedPackets++;
+                return false;
+            }
+        }
+        // P only says the first status byte was not in the sender's MIDI
+        // stream, it is still in the list, so it does not change parsing
+        if (!decodeList(packet, pos, listEnd, (flags & FLAG_Z) != 0)) {
+            malformedPackets++;
+            return false;
+        }
+        return true;
+    }
+
+    private boolean decodeList(byte[] packet, int pos, int end, boolean firstDelta) {
+        long time = timestamp;
+        // running status never carries over from the previous packet
+        int runningStatus = 0;
+        boolean first = true;
+        while (pos < end) {
+            if (!first || firstDelta) {
+                int delta = 0;
+                int b;
+                int octets = 0;
+                do {
+                    if (pos >= end || ++octets > 4) {
+                        return false;
+                    }
+                    b = packet[pos++] & 0xFF;
+                    delta = (delta << 7) | (b & 0x7F);
+                } while ((b & 0x80) != 0);
+                time += delta;
+                if (pos >= end) {
+                    return false;
+                }
+            }
+            first = false;
+            int status = packet[pos] & 0xFF;
+            if (status < 0x80) {
+                if (runningStatus == 0) {
+                    return false;
+                }
+                int count = MidiStreamParser.dataLength(runningStatus);
+                if (pos + count > end) {
+                    return false;
+                }
+                message[0] = (byte) runningStatus;
+                System.arraycopy(packet, pos, message, 1, count);
+                recovery.track(message, 0);
+                listener.onMessage(message, 0, count + 1, time);
+                pos += count;
+            } else if (status < 0xF0) {
+                int count = MidiStreamParser.dataLength(status) + 1;
+                if (pos + count > end) {
+                    return false;
+                }
+                runningStatus = status;
+                recovery.track(packet, pos);
+                listener.onMessage(packet, pos, count, time);
+                pos += count;
+            } else if (status >= 0xF8) {
+                listener.onMessage(packet, pos, 1, time);
+                pos++;
+            } else if (status == 0xF0 || status == 0xF7) {
+                runningStatus = 0;
+                pos = sysEx(packet, pos, end, time);
+                if (pos < 0) {
+                    return false;
+                }
+            } else {
+                runningStatus = 0;
+                int count = systemCommonLength(status);
+                if (pos + count > end) {
+                    return false;
+                }
+                listener.onMessage(packet, pos, count, time);
+                pos += count;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Passes on one SysEx segment. A segment starts with F0 (first or only)
+     * or F7 (continuation) and ends with F7 (last), F0 (more to come) or F4
+     * (cancelled).
+     * @return position after the segment, or -1 if it is not terminated
+     */
+    private int sysEx(byte[] packet, int pos, int end, long time) {
+        int from = packet[pos] == (byte) 0xF0 ? pos : pos + 1;
+        int term = pos + 1;
+        while (true) {
+            if (term >= end) {
+                return -1;
+            }
+            int b = packet[term] & 0xFF;
+            if (b < 0x80) {
+                term++;
+            } else if (b >= 0xF8) {
+                // real-time command embedded in the segment
+                if (term > from) {
+                    listener.onMessage(packet, from, term - from, time);
+                }
+                listener.onMessage(packet, term, 1, time);
+                from = ++term;
+            } else {
+                break;
+            }
+        }
+        switch (packet[term] & 0xFF) {
+            case 0xF7:
+                listener.onMessage(packet, from, term + 1 - from, time);
+                break;
+            case 0xF0:
+                if (term > from) {
+                    listener.onMessage(packet, from, term - from, time);
+                }
+                break;
+            case 0xF4:
+                // cancelled: no F7, the next status byte cuts the message
+                // short on the device, as it did in the sender's stream
+                break;
+            default:
+                return -1;
+        }
+        return term + 1;
+    }
+
+    static int systemCommonLength(int status) {
+        switch (status) {
+            case 0xF2:
+                return 3;
+            case 0xF1:
+            case 0xF3:
+                return 2;
+            default:
+                return 1;
+        }
+    }
+
+    /** @return 16-bit sequence number of the last decoded packet */
+    public int seqnum() { return seqnum; }
+    /** @return RTP timestamp of the last decoded packet */
+    public long timestamp() { return timestamp; }
+    public long ssrc() { return ssrc; }
+    public boolean hasJournal() { return hasJournal; }
+    /** @return offset of the recovery journal in the last decoded packet */
+    public int journalOffset() { return journalOffset; }
+    public long malformedPackets() { return malformedPackets; }
+    /** @return number of packets missing from the sequence */
+    public long lostPackets() { return lostPackets; }
+    /** @return number of duplicate or out of order packets dropped */
+    public long latePackets() { return latePackets; }
+    public long recoveredCommands() { return recovery.recoveredCommands(); }
+}
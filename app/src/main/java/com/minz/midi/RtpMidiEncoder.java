@@ -0,0 +1,458 @@
+package com.minz.midi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+
+/**
+ * Encodes outgoing MIDI commands as RTP-MIDI (RFC 6295) data packets.
+ * One instance is kept per session: the packet buffer and the
+ * {@link ByteBuffer} view it is sent through are allocated once, so
+ * encoding and sending a command does not allocate.
+ * <p>
+ * Commands added with {@link #addCommand} are coalesced into a single
+ * MIDI command list, each after the first preceded by its delta time,
+ * until {@link #flush} sends the packet.
+ * <p>
+ * With running status enabled, a channel command whose status byte
+ * matches the previous channel command in the same list is written
+ * without it. As in MIDI 1.0, System Common commands cancel running
+ * status and System Real-Time commands leave it untouched.
+ * <p>
+ * System Exclusive data added with {@link #addSysEx} is written as RFC 6295
+ * segments. A message that does not fit the remaining room of a packet is
+ * split: the first segment is framed F0 .. F0, middle segments F7 .. F0 and
+ * the final segment F7 .. F7, so no packet grows beyond the configured MTU.
+ * A message cancelled with {@link #cancelSysEx} ends with an F4 segment
+ * instead, so the receiver drops it rather than taking it as complete.
+ * <p>
+ * When a {@link RecoveryJournal} is enabled, channel commands are recorded
+ * in it and each packet carries the journal after its command list, with
+ * the J flag set. To leave room for the journal, command lists are then
+ * limited to half a packet.
+ * <p>
+ * A packet can be sent to several {@link Peer}s. The command list and the
+ * journal are encoded once; only the fields that differ between sessions,
+ * the sequence number, timestamp and SSRC in the RTP header and the journal
+ * checkpoint, are patched in for each peer before sending. Each peer's
+ * sequence numbers and timestamps are the shared ones plus a fixed offset,
+ * and the journal checkpoint only moves once every peer acknowledged, or
+ * when the journal has grown too large for a packet and is restarted.
+ */
+public class RtpMidiEncoder {
+    static final int RTP_HEADER_SIZE = 12;
+    static final int IP_UDP_HEADER_SIZE = 28;
+    static final int DEFAULT_MTU = 1500;
+    static final int MIN_MTU = 128;
+    static final int MAX_PACKET_SIZE = DEFAULT_MTU - IP_UDP_HEADER_SIZE;
+    static final int MAX_SHORT_LIST_LENGTH = 15;
+    static final int MAX_DELTA_SIZE = 4;
+    static final int FLAG_B = 0x80;
+    static final int FLAG_J = 0x40;
+    static final int SYSEX_START = 0xF0;
+    static final int SYSEX_END = 0xF7;
+    static final int SYSEX_CANCEL = 0xF4;
+    // the command list is written after room for the long (two octet) header,
+    // the RTP header is placed in front of whichever header the list needs
+    static final int LIST_OFFSET = RTP_HEADER_SIZE + 2;
+
+    /**
+     * A destination of the encoded packets, with its own RTP identity.
+     */
+    public static final class Peer {
+        final InetSocketAddress address;
+        final long ssrc;
+        // added to the shared sequence number and timestamp for this peer
+        final int seqOffset;
+        final long timestampOffset;
+        // shared sequence number of the last packet the peer acknowledged
+        int acknowledged;
+        long packetsSent;
+        // sends that failed, the peer's address unreachable or the like
+        long sendErrors;
+        // System.nanoTime of the first packet sent to the peer, 0 before
+        long firstPacketNanos;
+
+        Peer(InetSocketAddress address, long ssrc, int seqOffset, long timestampOffset, int acknowledged) {
+            this.address = address;
+            this.ssrc = ssrc;
+            this.seqOffset = seqOffset;
+            this.timestampOffset = timestampOffset;
+            this.acknowledged = acknowledged;
+        }
+
+        public long ssrc() { return ssrc; }
+        public long packetsSent() { return packetsSent; }
+        public long sendErrors() { return sendErrors; }
+        public long firstPacketNanos() { return firstPacketNanos; }
+    }
+
+    private final DatagramChannel channel;
+    private final byte[] buffer;
+    private final ByteBuffer packet;
+    private Peer[] peers = new Peer[0];
+    // extended sequence number of the last packet sent, the low 16 bits go on the wire
+    private int seq;
+    private int listLength;
+    private int commandCount;
+    private long packetTimestamp;
+    private long lastTimestamp;
+    private int packetSize = MAX_PACKET_SIZE;
+    private int maxListLength = MAX_PACKET_SIZE - LIST_OFFSET;
+    private RecoveryJournal journal;
+    // a System Exclusive segment is open at the end of the command list
+    private boolean sysExOpen;
+    // a System Exclusive message was started and has not ended yet
+    private boolean sysExActive;
+    private long packetsSent;
+    private long commandsSent;
+    private boolean runningStatus;
+    private int listStatus;
+    private long runningStatusBytesSaved;
+
+    /**
+     * Creates an encoder for a single session.
+     */
+    public RtpMidiEncoder(DatagramChannel channel, InetSocketAddress address, long ssrc) {
+        this(channel);
+        addPeer(address, ssrc, 0);
+    }
+
+    /**
+     * Creates an encoder without peers, add them with {@link #addPeer}.
+     */
+    public RtpMidiEncoder(DatagramChannel channel) {
+        this.channel = channel;
+        buffer = new byte[MAX_PACKET_SIZE];
+        packet = ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Starts sending packets to a peer. Its first packet gets sequence
+     * number 1.
+     * @param timestampOffset ticks added to command times for this peer
+     */
+    public synchronized Peer addPeer(InetSocketAddress address, long ssrc, long timestampOffset) {
+        Peer peer = new Peer(address, ssrc, -seq, timestampOffset, seq);
+        Peer[] more = Arrays.copyOf(peers, peers.length + 1);
+        more[peers.length] = peer;
+        peers = more;
+        return peer;
+    }
+
+    public synchronized void removePeer(Peer peer) {
+        int i = Arrays.asList(peers).indexOf(peer);
+        if (i < 0) {
+            return;
+        }
+        Peer[] fewer = new Peer[peers.length - 1];
+        System.arraycopy(peers, 0, fewer, 0, i);
+        System.arraycopy(peers, i + 1, fewer, i, fewer.length - i);
+        peers = fewer;
+        moveCheckpoint();
+    }
+
+    /**
+     * Appends a MIDI command to the pending command list, sending the
+     * pending packet first if the command does not fit.
+     * @param data buffer holding the command
+     * @param offset offset of the status byte
+     * @param count command length in bytes
+     * @param timestamp command time in 100 microsecond units
+     */
+    public synchronized void addCommand(byte[] data, int offset, int count, long timestamp) throws IOException {
+        closeSysExSegment();
+        if (commandCount > 0 && listLength + MAX_DELTA_SIZE + count > maxListLength) {
+            flush();
+        }
+        beginCommand(timestamp);
+        int status = data[offset] & 0xFF;
+        if (status < 0xF0) {
+            if (journal != null) {
+                journal.record(seq + 1, data, offset);
+            }
+            if (runningStatus && status == listStatus) {
+                offset++;
+                count--;
+                runningStatusBytesSaved++;
+            }
+            listStatus = status;
+        } else if (status < 0xF8) {
+            listStatus = 0;
+        }
+        System.arraycopy(data, offset, buffer, LIST_OFFSET + listLength, count);
+        listLength += count;
+    }
+
+    /**
+     * Appends System Exclusive data bytes, without the F0 and F7 framing
+     * bytes, sending packets as they fill up.
+     * @param start true if the data starts a new message
+     * @param end true if the data ends the message
+     * @param timestamp time of the data in 100 microsecond units
+     */
+    public synchronized void addSysEx(byte[] data, int offset, int count, boolean start, boolean end,
+                                      long timestamp) throws IOException {
+        if (count == 0 && !end && !sysExOpen) {
+            return;
+        }
+        while (true) {
+            if (!sysExOpen) {
+                // room for the delta time, both framing bytes and one data byte
+                if (commandCount > 0 && listLength + MAX_DELTA_SIZE + 3 > maxListLength) {
+                    flush();
+                }
+                beginCommand(timestamp);
+                buffer[LIST_OFFSET + listLength++] = (byte) (start ? SYSEX_START : SYSEX_END);
+                start = false;
+                sysExOpen = true;
+                sysExActive = true;
+                listStatus = 0;
+            }
+            // leave room for the byte closing the segment
+            int n = Math.min(count, maxListLength - listLength - 1);
+            System.arraycopy(data, offset, buffer, LIST_OFFSET + listLength, n);
+            listLength += n;
+            offset += n;
+            count -= n;
+            if (count == 0) {
+                break;
+            }
+            flush();
+        }
+        if (end) {
+            buffer[LIST_OFFSET + listLength++] = (byte) SYSEX_END;
+            sysExOpen = false;
+            sysExActive = false;
+        }
+    }
+
+    /**
+     * Cancels the System Exclusive message in progress: its open segment,
+     * or an empty F7 segment if the data so far went out in earlier
+     * packets, is ended with F4.
+     * @param timestamp time of the cancellation in 100 microsecond units
+     */
+    public synchronized void cancelSysEx(long timestamp) throws IOException {
+        if (!sysExActive) {
+            return;
+        }
+        if (!sysExOpen) {
+            if (commandCount > 0 && listLength + MAX_DELTA_SIZE + 2 > maxListLength) {
+                flush();
+            }
+            beginCommand(timestamp);
+            buffer[LIST_OFFSET + listLength++] = (byte) SYSEX_END;
+            listStatus = 0;
+        }
+        buffer[LIST_OFFSET + listLength++] = (byte) SYSEX_CANCEL;
+        sysExOpen = false;
+        sysExActive = false;
+    }
+
+    /**
+     * Sends the pending command list, if any, as one RTP-MIDI packet. A
+     * peer that cannot be sent to is counted in {@link Peer#sendErrors} and
+     * skipped, the others still get the packet.
+     */
+    public synchronized void flush() throws IOException {
+        if (commandCount == 0) {
+            return;
+        }
+        closeSysExSegment();
+        seq++;
+        int flags = 0;
+        int journalLength = 0;
+        if (journal != null) {
+            journalLength = journal.encode(buffer, LIST_OFFSET + listLength, packetSize, seq);
+            if (journalLength < 0) {
+                // too much history for one packet, restart the journal from
+                // here: it covers this packet on and so starts out empty
+                journal.setCheckpoint(seq - 1);
+                journalLength = journal.encode(buffer, LIST_OFFSET + listLength, packetSize, seq);
+            }
+            if (journalLength > 0) {
+                flags |= FLAG_J;
+            }
+        }
+        int start;
+        if (listLength > MAX_SHORT_LIST_LENGTH) {
+            start = 0;
+            buffer[LIST_OFFSET - 2] = (byte) (FLAG_B | flags | (listLength >> 8));
+            buffer[LIST_OFFSET - 1] = (byte) listLength;
+        } else {
+            start = 1;
+            buffer[LIST_OFFSET - 1] = (byte) (flags | listLength);
+        }
+        RtpMidiData.putHeader(buffer, start);
+        int end = LIST_OFFSET + listLength + journalLength;
+        int checkpointPos = LIST_OFFSET + listLength + 1;
+        int checkpoint = journalLength > 0 ? journal.checkpointPacket() : 0;
+        commandsSent += commandCount;
+        packetsSent++;
+        listLength = 0;
+        commandCount = 0;
+        listStatus = 0;
+        for (Peer peer : peers) {
+            RtpMidiData.putSequenceNumber(buffer, start, seq + peer.seqOffset);
+            RtpMidiData.putTimestamp(buffer, start, packetTimestamp + peer.timestampOffset);
+            RtpMidiData.putSsrc(buffer, start, peer.ssrc);
+            if (journalLength > 0) {
+                int peerCheckpoint = checkpoint + peer.seqOffset;
+                buffer[checkpointPos] = (byte) (peerCheckpoint >> 8);
+                buffer[checkpointPos + 1] = (byte) peerCheckpoint;
+            }
+            packet.limit(end);
+            packet.position(start);
+            try {
+                channel.send(packet, peer.address);
+            } catch (IOException e) {
+                // only the first one, an unreachable peer fails every packet
+                if (peer.sendErrors++ == 0) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+            if (peer.packetsSent++ == 0) {
+                peer.firstPacketNanos = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Limits packets to the given path MTU, counting IP and UDP headers.
+     */
+    public synchronized void setMtu(int mtu) {
+        packetSize = Math.max(MIN_MTU, Math.min(mtu, DEFAULT_MTU)) - IP_UDP_HEADER_SIZE;
+        updateListLength();
+    }
+
+    /**
+     * Enables or disables the recovery journal for subsequent packets.
+     */
+    public synchronized void setJournal(boolean enabled) {
+        journal = enabled ? new RecoveryJournal() : null;
+        updateListLength();
+    }
+
+    public synchronized RecoveryJournal journal() { return journal; }
+
+    /**
+     * Handles receiver feedback (AppleMIDI RS) of a single session encoder.
+     * @see #acknowledge(Peer, int)
+     */
+    public synchronized void acknowledge(int seqnum) {
+        if (peers.length > 0) {
+            acknowledge(peers[0], seqnum);
+        }
+    }
+
+    /**
+     * Handles receiver feedback (AppleMIDI RS): the peer has received the
+     * packet with the given 16-bit sequence number, so the journal no longer
+     * needs to cover it or anything sent before it for this peer.
+     */
+    public synchronized void acknowledge(Peer peer, int seqnum) {
+        int acknowledged = seq - ((seq + peer.seqOffset - seqnum) & 0xFFFF);
+        if (acknowledged > peer.acknowledged) {
+            peer.acknowledged = acknowledged;
+            moveCheckpoint();
+        }
+    }
+
+    /**
+     * Moves the journal checkpoint to the oldest packet acknowledged by all
+     * peers.
+     */
+    private void moveCheckpoint() {
+        if (journal == null || peers.length == 0) {
+            return;
+        }
+        int checkpoint = peers[0].acknowledged;
+        for (Peer peer : peers) {
+            checkpoint = Math.min(checkpoint, peer.acknowledged);
+        }
+        journal.setCheckpoint(checkpoint);
+    }
+
+    private void updateListLength() {
+        maxListLength = packetSize - LIST_OFFSET;
+        if (journal != null) {
+            maxListLength /= 2;
+        }
+    }
+
+    /**
+     * Enables or disables running status coding for subsequent command lists.
+     */
+    public synchronized void setRunningStatus(boolean enabled) {
+        runningStatus = enabled;
+        listStatus = 0;
+    }
+
+    /**
+     * @return the most System Exclusive data bytes that fit one packet
+     */
+    public synchronized int maxSysExSegment() {
+        return maxListLength - MAX_DELTA_SIZE - 2;
+    }
+
+    public synchronized boolean hasPending() { return commandCount > 0; }
+    public boolean runningStatus() { return runningStatus; }
+    /**
+     * @return number of status bytes left out by running status coding
+     */
+    public long runningStatusBytesSaved() { return runningStatusBytesSaved; }
+    public int seq() { return seq; }
+    public synchronized int peerCount() { return peers.length; }
+    public long packetsSent() { return packetsSent; }
+    public long commandsSent() { return commandsSent; }
+
+    private void beginCommand(long timestamp) {
+        if (commandCount == 0) {
+            packetTimestamp = timestamp;
+        } else {
+            writeDelta(timestamp - lastTimestamp);
+        }
+        lastTimestamp = timestamp;
+        commandCount++;
+    }
+
+    /**
+     * Ends an open System Exclusive segment with F0, marking that the
+     * message continues in a later segment.
+     */
+    private void closeSysExSegment() {
+        if (sysExOpen) {
+            buffer[LIST_OFFSET + listLength++] = (byte) SYSEX_START;
+            sysExOpen = false;
+        }
+    }
+
+    /**
+     * Writes a delta time as one to four octets, seven bits each, most
+     * significant first, with the high bit set on all but the last octet.
+     */
+    private void writeDelta(long delta) {
+        int pos = LIST_OFFSET + listLength;
+        if (delta < 0) {
+            delta = 0;
+        } else if (delta > 0x0FFFFFFF) {
+            delta = 0x0FFFFFFF;
+        }
+        int d = (int) delta;
+        if (d >= 1 << 21) {
+            buffer[pos++] = (byte) (0x80 | (d >> 21));
+        }
+        if (d >= 1 << 14) {
+            buffer[pos++] = (byte) (0x80 | ((d >> 14) & 0x7F));
+        }
+        if (d >= 1 << 7) {
+            buffer[pos++] = (byte) (0x80 | ((d >> 7) & 0x7F));
+        }
+        buffer[pos++] = (byte) (d & 0x7F);
+        listLength = pos - LIST_OFFSET;
+    }
+}
@@ -18,6 +18,7 @@ public class RtpMidiSession extends KaitaiStruct.ReadWrite {
     }
     public RtpMidiSession() {
         this(null, null, null);
+        this.sig = new byte[] { -1, -1 };
     }
 
     public RtpMidiSession(KaitaiStream _io) {
@@ -43,18 +44,31 @@ public class RtpMidiSession extends KaitaiStruct.ReadWrite {
         this.initiatortoken = this._io.readU4be();
         this.ssrc = this._io.readU4be();
         this.name = new String(this._io.readBytesTerm(0, false, true, true), Charset.forName("UTF-8"));
+        this.nameBytes = null;
     }
 
     public void _write() {
-        this._io.writeBytes(new byte[] { -1, -1 });
+        this._io.writeU2be(ControlPacketView.SIGNATURE);
         this._io.writeBytes(this.command);
         this._io.writeU4be(this.version);
         this._io.writeU4be(this.initiatortoken);
         this._io.writeU4be(this.ssrc);
-        this._io.writeBytes((name()).getBytes(Charset.forName("UTF-8")));
+        this._io.writeBytes(nameBytes());
         this._io.writeU1(0);
     }
 
+    public int _size() {
+        return 16 + nameBytes().length + 1;
+    }
+
+    private byte[] nameBytes() {
+        // encoded once per name, _size() and _write() both need it
+        if (nameBytes == null) {
+            nameBytes = (name()).getBytes(Charset.forName("UTF-8"));
+        }
+        return nameBytes;
+    }
+
 
 
 
@@ -63,12 +77,11 @@ public class RtpMidiSession extends KaitaiStruct.ReadWrite {
             throw new ConsistencyError("command", command().length, 2);
     }
     public void setValues( byte[] command, long initiatortoken,long ssrc, String name){
-        this.sig = new byte[] { -1, -1 };
         this.command=command;
         this.version=2;
         this.initiatortoken=initiatortoken;
         this.ssrc=ssrc;
-        this.name=name;
+        setName(name);
     }
     private byte[] sig;
     private byte[] command;
@@ -76,6 +89,7 @@ public class RtpMidiSession extends KaitaiStruct.ReadWrite {
     private long initiatortoken;
     private long ssrc;
     private String name;
+    private byte[] nameBytes;
     private RtpMidiSession _root;
     private KaitaiStruct.ReadWrite _parent;
     public byte[] sig() { return sig; }
@@ -89,7 +103,12 @@ public class RtpMidiSession extends KaitaiStruct.ReadWrite {
     public long ssrc() { return ssrc; }
     public void setSsrc(long _v) { ssrc = _v; }
     public String name() { return name; }
-    public void setName(String _v) { name = _v; }
+    public void setName(String _v) {
+        if (_v == null || !_v.equals(name)) {
+            nameBytes = null;
+        }
+        name = _v;
+    }
     public RtpMidiSession _root() { return _root; }
     public void set_root(RtpMidiSession _v) { _root = _v; }
     public KaitaiStruct.ReadWrite _parent() { return _parent; }
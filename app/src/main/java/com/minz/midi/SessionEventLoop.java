@@ -0,0 +1,236 @@
+package com.minz.midi;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+
+/**
+ * Runs AppleMIDI session I/O on a single thread. The control port and the
+ * data port (control port + 1) are non-blocking {@link DatagramChannel}s
+ * registered with one {@link Selector}; invitation retries, CK rounds and
+ * MIDI flushes are timers run by the same thread between selects, so the
+ * thread only wakes up for a packet or a due timer.
+ * <p>
+ * Timers are posted like on an android.os.Handler and may be posted from
+ * any thread. Packets are handed to the {@link PacketHandler} in a buffer
+ * owned by the loop that is only valid for the duration of the call.
+ */
+public class SessionEventLoop extends Thread {
+    public interface PacketHandler {
+        /**
+         * @param data true if the packet arrived on the data port
+         */
+        void onPacket(boolean data, byte[] packet, int length, InetSocketAddress from);
+    }
+
+    static final int MAX_DATAGRAM = 1500;
+    static final int INITIAL_TIMERS = 16;
+
+    private final Selector selector;
+    private final DatagramChannel controlChannel;
+    private final DatagramChannel dataChannel;
+    private final PacketHandler handler;
+    private final byte[] buffer = new byte[MAX_DATAGRAM];
+    private final ByteBuffer receiveBuffer = ByteBuffer.wrap(buffer);
+    // pending timers, unordered: a session only has a handful
+    private Runnable[] tasks = new Runnable[INITIAL_TIMERS];
+    private long[] deadlines = new long[INITIAL_TIMERS];
+    private int taskCount;
+    private volatile boolean running = true;
+
+    public SessionEventLoop(int controlPort, PacketHandler handler) throws IOException {
+        super("SessionEventLoop");
+        this.handler = handler;
+        selector = Selector.open();
+        controlChannel = open(controlPort);
+        dataChannel = open(controlPort + 1);
+    }
+
+    private DatagramChannel open(int port) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ);
+        return channel;
+    }
+
+    public DatagramChannel controlChannel() { return controlChannel; }
+    public DatagramChannel dataChannel() { return dataChannel; }
+
+    /**
+     * Sends a packet from the control or the data port.
+     */
+    public void send(boolean data, ByteBuffer packet, SocketAddress to) throws IOException {
+        (data ? dataChannel : controlChannel).send(packet, to);
+    }
+
+    public void post(Runnable task) {
+        postAt(task, System.nanoTime());
+    }
+
+    public void postDelayed(Runnable task, long delayMillis) {
+        postAt(task, System.nanoTime() + delayMillis * 1000000L);
+    }
+
+    /**
+     * Runs the task on the loop thread once {@link System#nanoTime} reaches
+     * the given time.
+     */
+    public void postAt(Runnable task, long nanoTime) {
+        synchronized (this) {
+            if (taskCount == tasks.length) {
+                Runnable[] moreTasks = new Runnable[tasks.length * 2];
+                long[] moreDeadlines = new long[tasks.length * 2];
+                System.arraycopy(tasks, 0, moreTasks, 0, taskCount);
+                System.arraycopy(deadlines, 0, moreDeadlines, 0, taskCount);
+                tasks = moreTasks;
+                deadlines = moreDeadlines;
+            }
+            tasks[taskCount] = task;
+            deadlines[taskCount] = nanoTime;
+            taskCount++;
+        }
+        if (Thread.currentThread() != this) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Removes all pending posts of the task.
+     */
+    public synchronized void removeCallbacks(Runnable task) {
+        for (int i = taskCount - 1; i >= 0; i--) {
+            if (tasks[i] == task) {
+                remove(i);
+            }
+        }
+    }
+
+    private void remove(int i) {
+        taskCount--;
+        tasks[i] = tasks[taskCount];
+        deadlines[i] = deadlines[taskCount];
+        tasks[taskCount] = null;
+    }
+
+    /**
+     * Stops the loop and closes both ports. Pending timers are dropped.
+     */
+    public void quit() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                long wait = runTimers();
+                if (!running) {
+                    break;
+                }
+                if (wait < 0) {
+                    selector.select();
+                } else {
+                    selector.select(Math.max(1, (wait + 999999) / 1000000));
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    receive((DatagramChannel) key.channel());
+                }
+            }
+        } catch (IOException e) {
+            Log.d("DEBUG", "Exception at SessionEventLoop:" + e.toString());
+            e.printStackTrace();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Handles every packet waiting on the channel. A failed receive is
+     * logged and the rest left for the next select, so one bad datagram or
+     * ICMP error does not end every session; only a closed channel is
+     * passed up to stop the loop.
+     */
+    private void receive(DatagramChannel channel) throws ClosedChannelException {
+        boolean data = channel == dataChannel;
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress from;
+            try {
+                from = channel.receive(receiveBuffer);
+            } catch (ClosedChannelException e) {
+                throw e;
+            } catch (IOException e) {
+                Log.d("DEBUG", "Exception receiving packet:" + e.toString());
+                e.printStackTrace();
+                return;
+            }
+            if (from == null) {
+                return;
+            }
+            try {
+                handler.onPacket(data, buffer, receiveBuffer.position(), (InetSocketAddress) from);
+            } catch (RuntimeException e) {
+                // a malformed packet must not stop the loop
+                Log.d("DEBUG", "Exception handling packet:" + e.toString());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Runs the due timers.
+     * @return nanoseconds until the next timer is due, or -1 if there is none
+     */
+    private long runTimers() {
+        while (true) {
+            Runnable task;
+            synchronized (this) {
+                int next = -1;
+                for (int i = 0; i < taskCount; i++) {
+                    if (next < 0 || deadlines[i] - deadlines[next] < 0) {
+                        next = i;
+                    }
+                }
+                if (next < 0) {
+                    return -1;
+                }
+                long wait = deadlines[next] - System.nanoTime();
+                if (wait > 0) {
+                    return wait;
+                }
+                task = tasks[next];
+                remove(next);
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.d("DEBUG", "Exception in timer:" + e.toString());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void close() {
+        try {
+            controlChannel.close();
+            dataChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Log.d("DEBUG", "session ports closed!");
+    }
+}
@@ -0,0 +1,259 @@
+package com.minz.midi;
+
+import java.io.IOException;
+
+/**
+ * Queues System Exclusive data for bulk transfers and releases it to an
+ * {@link RtpMidiEncoder} at a limited rate, so large dumps do not overrun
+ * the receiver. The rate is enforced with a token bucket that holds at
+ * most one segment worth of bytes. Other MIDI traffic is sent directly
+ * through the encoder and so goes out ahead of queued bulk data.
+ * <p>
+ * Data is kept in a ring with its F0 and F7 framing bytes, and an F4 where
+ * a message was cancelled. {@link #write} never waits: it is called on the
+ * MIDI device's callback thread, and real-time and channel messages behind
+ * the SysEx in the same callback must not be held up. When the ring is
+ * full it doubles, up to a maximum; at the maximum the message being
+ * written is cancelled and the rest of it dropped.
+ */
+public class SysExPacer {
+    public interface ProgressListener {
+        /**
+         * Called after each paced segment.
+         * @param bytesSent bytes sent of the current message, from its F0
+         * @param bytesPending bytes still queued
+         * @param bytesPerSecond average rate since the message's first segment
+         */
+        void onProgress(long bytesSent, long bytesPending, long bytesPerSecond);
+    }
+
+    static final int DEFAULT_CAPACITY = 64 * 1024;
+    static final int DEFAULT_MAX_CAPACITY = 4 * 1024 * 1024;
+    static final int DEFAULT_RATE = 32 * 1024;
+    static final byte SYSEX_START = (byte) RtpMidiEncoder.SYSEX_START;
+    static final byte SYSEX_END = (byte) RtpMidiEncoder.SYSEX_END;
+    static final byte SYSEX_CANCEL = (byte) RtpMidiEncoder.SYSEX_CANCEL;
+
+    private final RtpMidiEncoder encoder;
+    private final int maxCapacity;
+    private byte[] ring;
+    private int head;
+    private int size;
+    private long rate;
+    private double tokens;
+    private long lastRefillNanos;
+    private long transferStartNanos;
+    private long bytesSent;
+    private boolean pendingStart;
+    // the message being written overran the ring, drop the rest of it
+    private boolean dropping;
+    private long droppedMessages;
+    // a byte went into the empty ring since the last write returned
+    private boolean drainNeeded;
+    private boolean closed;
+    private ProgressListener progressListener;
+
+    public SysExPacer(RtpMidiEncoder encoder) {
+        this(encoder, DEFAULT_CAPACITY, DEFAULT_MAX_CAPACITY, DEFAULT_RATE);
+    }
+
+    public SysExPacer(RtpMidiEncoder encoder, int capacity, int maxCapacity, long bytesPerSecond) {
+        this.encoder = encoder;
+        this.maxCapacity = Math.max(capacity, maxCapacity);
+        ring = new byte[capacity];
+        rate = bytesPerSecond;
+    }
+
+    public synchronized void setRate(long bytesPerSecond) { rate = bytesPerSecond; }
+    public synchronized void setProgressListener(ProgressListener listener) { progressListener = listener; }
+
+    /**
+     * Queues System Exclusive data bytes, as reported by
+     * {@link MidiStreamParser.Listener#onSysEx}.
+     * @return true if some of the data went into an empty queue, which
+     * {@link #drain} does not look at again by itself, so the caller must
+     * schedule a drain; false if one is already due or the pacer was closed
+     */
+    public synchronized boolean write(byte[] data, int offset, int count, boolean start, boolean end) {
+        if (closed) {
+            return false;
+        }
+        if (start) {
+            dropping = false;
+        }
+        boolean queued = true;
+        if (!dropping) {
+            if (room(count + (start ? 1 : 0) + (end ? 1 : 0))) {
+                if (start) {
+                    put(SYSEX_START);
+                }
+                for (int i = offset; i < offset + count; i++) {
+                    put(data[i]);
+                }
+                if (end) {
+                    put(SYSEX_END);
+                }
+            } else {
+                // the message is too large to hold, cancel what was queued of it
+                queued = !start && put(SYSEX_CANCEL);
+                droppedMessages++;
+                dropping = !end;
+            }
+        }
+        return drainNeeded(queued);
+    }
+
+    /**
+     * Queues the cancellation of the message being written, as reported by
+     * {@link MidiStreamParser.Listener#onSysExCancelled}.
+     * @return true if the caller must schedule a drain, as for {@link #write}
+     */
+    public synchronized boolean cancel() {
+        if (dropping) {
+            // already cancelled when it overran
+            dropping = false;
+            return false;
+        }
+        return drainNeeded(put(SYSEX_CANCEL));
+    }
+
+    private boolean drainNeeded(boolean queued) {
+        boolean needed = drainNeeded && queued;
+        drainNeeded = false;
+        return needed;
+    }
+
+    /**
+     * Makes room for count more bytes, growing the ring if needed. One byte
+     * is always kept back for the F4 of a message that does not fit.
+     */
+    private boolean room(int count) {
+        int needed = size + count + 1;
+        if (needed <= ring.length) {
+            return true;
+        }
+        if (needed > maxCapacity) {
+            return false;
+        }
+        int capacity = ring.length;
+        while (capacity < needed) {
+            capacity = Math.min(capacity * 2, maxCapacity);
+        }
+        byte[] grown = new byte[capacity];
+        int first = Math.min(size, ring.length - head);
+        System.arraycopy(ring, head, grown, 0, first);
+        System.arraycopy(ring, 0, grown, first, size - first);
+        ring = grown;
+        head = 0;
+        return true;
+    }
+
+    private boolean put(byte b) {
+        if (closed || size == ring.length) {
+            return false;
+        }
+        if (size == 0) {
+            drainNeeded = true;
+        }
+        ring[(head + size) % ring.length] = b;
+        size++;
+        return true;
+    }
+
+    /**
+     * Sends as much queued data as the token bucket allows, one segment at
+     * a time.
+     * @param timestamp RTP timestamp for the segments
+     * @return milliseconds until the next segment can be sent, or -1 if the
+     * queue is empty
+     */
+    public synchronized long drain(long timestamp) throws IOException {
+        int segment = encoder.maxSysExSegment();
+        long now = System.nanoTime();
+        if (lastRefillNanos != 0) {
+            tokens = Math.min(segment, tokens + (now - lastRefillNanos) * rate / 1e9);
+        } else {
+            tokens = segment;
+        }
+        lastRefillNanos = now;
+        while (size > 0) {
+            int n = Math.min(size, segment);
+            if (tokens < n) {
+                return Math.max(1, (long) Math.ceil((n - tokens) * 1000 / rate));
+            }
+            tokens -= n;
+            int first = Math.min(n, ring.length - head);
+            send(head, first, timestamp, now);
+            if (first < n) {
+                send(0, n - first, timestamp, now);
+            }
+            encoder.flush();
+            head = (head + n) % ring.length;
+            size -= n;
+            reportProgress(now);
+        }
+        lastRefillNanos = 0;
+        return -1;
+    }
+
+    /**
+     * Hands a stretch of the ring to the encoder. Progress restarts at each
+     * F0 and F4, so it covers one message even when several are queued.
+     */
+    private void send(int from, int count, long timestamp, long now) throws IOException {
+        int runStart = -1;
+        int to = from + count;
+        for (int i = from; i < to; i++) {
+            int b = ring[i] & 0xFF;
+            if (b == RtpMidiEncoder.SYSEX_START || b == RtpMidiEncoder.SYSEX_CANCEL) {
+                transferStartNanos = now;
+                bytesSent = 0;
+            }
+            if (b != RtpMidiEncoder.SYSEX_CANCEL) {
+                bytesSent++;
+            }
+            if (b == RtpMidiEncoder.SYSEX_START) {
+                pendingStart = true;
+            } else if (b == RtpMidiEncoder.SYSEX_END) {
+                int start = runStart >= 0 ? runStart : i;
+                encoder.addSysEx(ring, start, i - start, pendingStart, true, timestamp);
+                pendingStart = false;
+                runStart = -1;
+            } else if (b == RtpMidiEncoder.SYSEX_CANCEL) {
+                if (runStart >= 0) {
+                    encoder.addSysEx(ring, runStart, i - runStart, pendingStart, false, timestamp);
+                }
+                encoder.cancelSysEx(timestamp);
+                pendingStart = false;
+                runStart = -1;
+            } else if (runStart < 0) {
+                runStart = i;
+            }
+        }
+        if (runStart >= 0) {
+            encoder.addSysEx(ring, runStart, to - runStart, pendingStart, false, timestamp);
+            pendingStart = false;
+        }
+    }
+
+    private void reportProgress(long now) {
+        if (progressListener == null) {
+            return;
+        }
+        long elapsed = now - transferStartNanos;
+        long bytesPerSecond = elapsed > 0 ? (long) (bytesSent * 1e9 / elapsed) : 0;
+        progressListener.onProgress(bytesSent, size, bytesPerSecond);
+    }
+
+    public synchronized boolean isEmpty() { return size == 0; }
+    /** @return messages cancelled because they did not fit the ring */
+    public synchronized long droppedMessages() { return droppedMessages; }
+
+    /**
+     * Discards queued data; later writes are ignored.
+     */
+    public synchronized void close() {
+        closed = true;
+        size = 0;
+    }
+}
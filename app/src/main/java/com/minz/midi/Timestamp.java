@@ -52,11 +52,12 @@ public class Timestamp extends KaitaiStruct.ReadWrite {
     }
 
     public void _write() {
-        this._io.writeBytes(new byte[] { -1, -1 });
-        this._io.writeBytes(new byte[] { 67, 75 });
+        this._io.writeU2be(ControlPacketView.SIGNATURE);
+        this._io.writeU2be(ControlPacketView.CK);
         this._io.writeU4be(this.ssrc);
         this._io.writeU1(this.count);
-        this._io.writeBytes(new byte[] { 0, 0, 0 });
+        this._io.writeU1(0);
+        this._io.writeU2be(0);
         this._io.writeU8be(this.timestamp1);
         this._io.writeU8be(this.timestamp2);
         this._io.writeU8be(this.timestamp3);
@@ -64,6 +65,10 @@ public class Timestamp extends KaitaiStruct.ReadWrite {
 
     public void _check() {
     }
+
+    public int _size() {
+        return 36;
+    }
     private byte[] sig;
     private byte[] command;
     private long ssrc;
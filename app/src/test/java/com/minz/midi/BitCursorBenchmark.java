@@ -0,0 +1,101 @@
+package com.minz.midi;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Microbenchmarks for {@link BitCursor} and the journal code built on it,
+ * skipped unless asked for with {@code ./gradlew test -Pbenchmarks}. The
+ * results are correct by {@link BitCursorTest}; these only time them, and
+ * the numbers are indicative on a development machine (host) at best.
+ */
+public class BitCursorBenchmark {
+    private static final int WARMUP = 20000;
+    private static final int ROUNDS = 200000;
+
+    private static int sink;
+
+    @Before
+    public void enabled() {
+        assumeTrue(Boolean.getBoolean("benchmarks"));
+    }
+
+    @Test
+    public void fields() {
+        byte[] data = new byte[BitCursorTest.FIELDS_SIZE];
+        new Random(1).nextBytes(data);
+        BitCursor cursor = new BitCursor();
+        ByteBufferKaitaiStream io = new ByteBufferKaitaiStream(data);
+        for (int k = 0; k < WARMUP; k++) {
+            sink += readCursor(cursor, data) + readKaitai(io, data);
+        }
+        long start = System.nanoTime();
+        for (int k = 0; k < ROUNDS; k++) {
+            sink += readCursor(cursor, data);
+        }
+        long cursorNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int k = 0; k < ROUNDS; k++) {
+            sink += readKaitai(io, data);
+        }
+        long kaitaiNanos = System.nanoTime() - start;
+        report("header and " + BitCursorTest.PAIRS + " pairs, BitCursor", cursorNanos);
+        report("header and " + BitCursorTest.PAIRS + " pairs, KaitaiStream.readBitsInt", kaitaiNanos);
+    }
+
+    @Test
+    public void journal() {
+        RecoveryJournal journal = BitCursorTest.chaptersNC();
+        JournalRecovery recovery = new JournalRecovery();
+        RtpMidiDecoder.Listener listener = new RtpMidiDecoder.Listener() {
+            @Override
+            public void onMessage(byte[] data, int offset, int count, long timestamp) {
+                sink += count;
+            }
+        };
+        byte[] packet = new byte[RtpMidiEncoder.MAX_PACKET_SIZE];
+        int length = 0;
+        for (int k = 0; k < WARMUP; k++) {
+            length = journal.encode(packet, 0, packet.length, 2);
+            recovery.recover(packet, 0, length, 0, listener);
+        }
+        long start = System.nanoTime();
+        for (int k = 0; k < ROUNDS; k++) {
+            journal.encode(packet, 0, packet.length, 2);
+        }
+        long encodeNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int k = 0; k < ROUNDS; k++) {
+            recovery.recover(packet, 0, length, 0, listener);
+        }
+        long recoverNanos = System.nanoTime() - start;
+        report("encode chapters N and C, " + length + " bytes", encodeNanos);
+        report("recover chapters N and C, " + length + " bytes", recoverNanos);
+    }
+
+    private static int readCursor(BitCursor in, byte[] data) {
+        in.reset(data, 0);
+        int sum = (in.readFlag() ? 1 : 0) + in.readU4() + (in.readFlag() ? 1 : 0) + in.readU10() + in.readU8();
+        for (int k = 0; k < BitCursorTest.PAIRS; k++) {
+            sum += (in.readFlag() ? 1 : 0) + in.readU7();
+        }
+        return sum;
+    }
+
+    private static int readKaitai(ByteBufferKaitaiStream io, byte[] data) {
+        io.reset(data, 0, data.length);
+        long sum = io.readBitsInt(1) + io.readBitsInt(4) + io.readBitsInt(1) + io.readBitsInt(10) + io.readBitsInt(8);
+        for (int k = 0; k < BitCursorTest.PAIRS; k++) {
+            sum += io.readBitsInt(1) + io.readBitsInt(7);
+        }
+        return (int) sum;
+    }
+
+    private static void report(String name, long nanos) {
+        System.out.println(String.format("%s: %.1f ns/op", name, (double) nanos / ROUNDS));
+    }
+}
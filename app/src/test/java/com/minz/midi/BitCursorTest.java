@@ -0,0 +1,137 @@
+package com.minz.midi;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link BitCursor} against {@link KaitaiStream#readBitsInt} and the
+ * journal code built on it.
+ */
+public class BitCursorTest {
+    // one channel journal header, then flag and 7-bit value pairs
+    static final int PAIRS = 16;
+    static final int FIELDS_SIZE = 3 + 2 * PAIRS;
+
+    @Test
+    public void fields_matchKaitai() {
+        Random random = new Random(1);
+        byte[] data = new byte[FIELDS_SIZE + 3];
+        BitCursor cursor = new BitCursor();
+        ByteBufferKaitaiStream io = new ByteBufferKaitaiStream(data);
+        for (int k = 0; k < 1000; k++) {
+            random.nextBytes(data);
+            cursor.reset(data, 0);
+            io.reset(data, 0, data.length);
+            assertEquals(io.readBitsInt(1) != 0, cursor.readFlag());
+            assertEquals(io.readBitsInt(4), cursor.readU4());
+            assertEquals(io.readBitsInt(1) != 0, cursor.readFlag());
+            assertEquals(io.readBitsInt(10), cursor.readU10());
+            assertEquals(io.readBitsInt(8), cursor.readU8());
+            for (int pair = 0; pair < PAIRS; pair++) {
+                assertEquals(io.readBitsInt(1) != 0, cursor.readFlag());
+                assertEquals(io.readBitsInt(7), cursor.readU7());
+            }
+            // and a 16-bit field off the byte boundary
+            assertEquals(io.readBitsInt(1) != 0, cursor.readFlag());
+            assertEquals(io.readBitsInt(16), cursor.readU16());
+        }
+    }
+
+    @Test
+    public void writes_readBack() {
+        Random random = new Random(2);
+        byte[] data = new byte[8];
+        BitCursor cursor = new BitCursor();
+        for (int k = 0; k < 10000; k++) {
+            // start anywhere in the first byte
+            int lead = random.nextInt(8);
+            boolean flag = random.nextBoolean();
+            int u4 = random.nextInt(16), u7 = random.nextInt(128), u10 = random.nextInt(1024);
+            int u8 = random.nextInt(256), u16 = random.nextInt(65536);
+            random.nextBytes(data);
+            byte first = data[0];
+            cursor.reset(data, 0);
+            for (int bit = 0; bit < lead; bit++) {
+                cursor.readFlag();
+            }
+            cursor.writeFlag(flag);
+            cursor.writeU4(u4);
+            cursor.writeU7(u7);
+            cursor.writeU10(u10);
+            cursor.writeU8(u8);
+            cursor.writeU16(u16);
+            // the bits in front are left alone
+            assertEquals((first & 0xFF) >> (8 - lead), (data[0] & 0xFF) >> (8 - lead));
+            cursor.reset(data, 0);
+            for (int bit = 0; bit < lead; bit++) {
+                cursor.readFlag();
+            }
+            assertEquals(flag, cursor.readFlag());
+            assertEquals(u4, cursor.readU4());
+            assertEquals(u7, cursor.readU7());
+            assertEquals(u10, cursor.readU10());
+            assertEquals(u8, cursor.readU8());
+            assertEquals(u16, cursor.readU16());
+        }
+    }
+
+    @Test
+    public void offBits_setAndSkip() {
+        byte[] data = { -1, -1, -1, -1 };
+        BitCursor cursor = new BitCursor().reset(data, 0);
+        cursor.writeZeros(3);
+        assertEquals(3, cursor.position());
+        cursor.setBit(0, 0);
+        cursor.setBit(0, 9);
+        cursor.setBit(0, 23);
+        assertArrayEquals(new byte[] { (byte) 0x80, 0x40, 0x01, -1 }, data);
+        cursor.reset(data, 0);
+        cursor.readFlag();
+        cursor.skip(1);
+        assertEquals(2, cursor.position());
+        cursor.seek(0);
+        assertTrue(cursor.readFlag());
+    }
+
+    @Test
+    public void journal_encodeAndRecover() {
+        final int[] recovered = new int[1];
+        RecoveryJournal journal = chaptersNC();
+        byte[] packet = new byte[RtpMidiEncoder.MAX_PACKET_SIZE];
+        int length = journal.encode(packet, 0, packet.length, 2);
+        assertTrue(length > 0);
+        assertTrue(new JournalRecovery().recover(packet, 0, length, 0, new RtpMidiDecoder.Listener() {
+            @Override
+            public void onMessage(byte[] data, int offset, int count, long timestamp) {
+                recovered[0]++;
+            }
+        }));
+        // 24 note ons and the 8 controllers; the 8 released notes were never sounding here
+        assertEquals(32, recovered[0]);
+    }
+
+    /**
+     * @return a journal whose packet 1 set chapter N with 24 logs and
+     * OFFBITS and chapter C with 8 controllers, all on channel 0
+     */
+    static RecoveryJournal chaptersNC() {
+        RecoveryJournal journal = new RecoveryJournal();
+        byte[] message = new byte[3];
+        for (int k = 0; k < 32; k++) {
+            message[0] = (byte) (k % 4 == 0 ? 0x80 : 0x90);
+            message[1] = (byte) (36 + k);
+            message[2] = (byte) (64 + k);
+            journal.record(1, message, 0);
+        }
+        for (int k = 0; k < 8; k++) {
+            message[0] = (byte) 0xB0;
+            message[1] = (byte) (k + 1);
+            message[2] = (byte) (k * 10);
+            journal.record(1, message, 0);
+        }
+        return journal;
+    }
+}
@@ -0,0 +1,98 @@
+package com.minz.midi;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds {@link ClockSync} CK exchanges with a peer whose clock is a known
+ * offset and drift away from the local one.
+ */
+public class ClockSyncTest {
+    private static final long OFFSET = 123456;
+    private static final long SECOND = MediaClock.TICKS_PER_SECOND;
+
+    /**
+     * Runs one exchange starting at local time t1, answered by a peer whose
+     * clock is local time minus OFFSET plus drift, after a given part of the
+     * round trip.
+     */
+    private static boolean exchange(ClockSync sync, long t1, long rtt, long outbound, double drift) {
+        long answered = t1 + outbound;
+        long t2 = Math.round(answered - OFFSET - drift * answered);
+        return sync.addSample(t1, t2, t1 + rtt);
+    }
+
+    @Test
+    public void offsetAndDrift_fitted() {
+        double drift = 100e-6;
+        ClockSync sync = new ClockSync();
+        for (int k = 0; k < 30; k++) {
+            // every fourth exchange queued one way, and off by much more than the others
+            long rtt = k % 4 == 3 ? 400 : 20;
+            exchange(sync, k * SECOND, rtt, k % 4 == 3 ? 390 : 10, drift);
+        }
+        assertEquals(drift, sync.drift(), 2e-6);
+        long later = 35 * SECOND;
+        assertEquals(OFFSET + drift * later, sync.offset(later), 1);
+        long remote = Math.round(later - OFFSET - drift * later);
+        assertEquals(later, sync.toLocal(remote), 1);
+        assertEquals(20, sync.minRtt());
+    }
+
+    @Test
+    public void driftNotFittedBeforeSpan() {
+        ClockSync sync = new ClockSync();
+        for (int k = 0; k < 5; k++) {
+            exchange(sync, k * SECOND, 20, 10, 20e-6);
+        }
+        assertTrue(sync.isSynced());
+        assertEquals(0, sync.drift(), 0);
+        // the mean of the samples, which drifted less than a tick
+        assertEquals(OFFSET, sync.offset(4 * SECOND), 1);
+    }
+
+    @Test
+    public void driftClamped() {
+        ClockSync sync = new ClockSync();
+        for (int k = 0; k < 20; k++) {
+            exchange(sync, k * SECOND, 20, 10, 2000e-6);
+        }
+        assertEquals(ClockSync.MAX_DRIFT, sync.drift(), 0);
+    }
+
+    @Test
+    public void negativeRtt_rejected() {
+        ClockSync sync = new ClockSync();
+        assertFalse(sync.addSample(1000, 0, 999));
+        assertFalse(sync.isSynced());
+        assertEquals(0, sync.samples());
+    }
+
+    @Test
+    public void intervals_burstThenBackOff() {
+        ClockSync sync = new ClockSync();
+        assertEquals(ClockSync.BURST_INTERVAL, sync.nextInterval());
+        long t = 0;
+        for (int k = 0; k < ClockSync.SYNC_BURST; k++) {
+            assertEquals(ClockSync.BURST_INTERVAL, sync.nextInterval());
+            exchange(sync, t, 20, 10, 0);
+            t += ClockSync.BURST_INTERVAL * SECOND / 1000;
+        }
+        // the estimate keeps predicting the samples, so the interval doubles
+        long interval = ClockSync.MIN_INTERVAL;
+        for (int k = 0; k < 8; k++) {
+            interval = Math.min(interval * 2, ClockSync.MAX_INTERVAL);
+            assertEquals(interval, sync.nextInterval());
+            t += interval * SECOND / 1000;
+            exchange(sync, t, 20, 10, 0);
+            assertTrue(sync.isStable());
+        }
+        assertEquals(ClockSync.MAX_INTERVAL, interval);
+
+        // a congested round trip starts over
+        exchange(sync, t + SECOND, 20 + 10 * ClockSync.STABLE_RTT_EXCESS, 10, 0);
+        assertFalse(sync.isStable());
+        assertEquals(ClockSync.MIN_INTERVAL, sync.nextInterval());
+    }
+}
@@ -0,0 +1,125 @@
+package com.minz.midi;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the ordering and playout times of {@link JitterBuffer}, with the
+ * sender's clock fixed 1000 ticks behind the local one by a {@link ClockSync}.
+ */
+public class JitterBufferTest {
+    private static final long OFFSET = 1000;
+    private static final long DELAY = 10000000L;
+
+    private final List<String> messages = new ArrayList<>();
+    private final List<Long> times = new ArrayList<>();
+    private final JitterBuffer.Output output = new JitterBuffer.Output() {
+        @Override
+        public void send(byte[] msg, int offset, int count, long timestamp) {
+            StringBuilder s = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                s.append(String.format(i == 0 ? "%02X" : " %02X", msg[offset + i]));
+            }
+            messages.add(s.toString());
+            times.add(timestamp);
+        }
+    };
+    private MediaClock clock;
+    // the sender's clock now
+    private long base;
+
+    private JitterBuffer buffer(MediaClock clock, int capacity) {
+        this.clock = clock;
+        ClockSync sync = new ClockSync();
+        sync.addSample(OFFSET, 0, OFFSET);
+        JitterBuffer buffer = new JitterBuffer(output, clock, capacity);
+        buffer.setClockSync(sync);
+        buffer.setPlayoutDelay(DELAY);
+        base = clock.now() - OFFSET;
+        return buffer;
+    }
+
+    private void add(JitterBuffer buffer, long timestamp, int... bytes) throws IOException {
+        byte[] message = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            message[i] = (byte) bytes[i];
+        }
+        buffer.add(message, 0, message.length, timestamp & 0xFFFFFFFFL);
+    }
+
+    private long playout(long remote) {
+        return clock.toNanos(remote + OFFSET) + DELAY;
+    }
+
+    @Test
+    public void outOfOrder_playedInOrder() throws IOException {
+        JitterBuffer buffer = buffer(new MediaClock(0), JitterBuffer.DEFAULT_CAPACITY);
+        add(buffer, base + 30, 0x90, 64, 100);
+        add(buffer, base + 10, 0x90, 60, 100);
+        add(buffer, base + 20, 0x90, 62, 100);
+        add(buffer, base + 20, 0xB0, 7, 90);
+        assertTrue(messages.isEmpty());
+
+        assertEquals(-1, buffer.drain(Long.MAX_VALUE));
+        // equal times keep their arrival order
+        assertEquals(Arrays.asList("90 3C 64", "90 3E 64", "B0 07 5A", "90 40 64"), messages);
+        assertEquals(Arrays.asList(playout(base + 10), playout(base + 20), playout(base + 20), playout(base + 30)), times);
+    }
+
+    @Test
+    public void drain_waitsUntilDue() throws IOException {
+        JitterBuffer buffer = buffer(new MediaClock(0), JitterBuffer.DEFAULT_CAPACITY);
+        add(buffer, base, 0x90, 60, 100);
+        add(buffer, base + 50, 0x80, 60, 0);
+        long due = playout(base) - JitterBuffer.LOOKAHEAD;
+
+        assertEquals(5000, buffer.drain(due - 5000));
+        assertTrue(messages.isEmpty());
+        assertEquals(50 * MediaClock.NANOS_PER_TICK, buffer.drain(due));
+        assertEquals(Arrays.asList("90 3C 64"), messages);
+        assertEquals(-1, buffer.drain(due + 50 * MediaClock.NANOS_PER_TICK));
+        assertEquals(Arrays.asList("90 3C 64", "80 3C 00"), messages);
+    }
+
+    @Test
+    public void sysEx_sentStraightAway() throws IOException {
+        JitterBuffer buffer = buffer(new MediaClock(0), JitterBuffer.DEFAULT_CAPACITY);
+        add(buffer, base + 10, 0x90, 60, 100);
+        add(buffer, base + 20, 0xF0, 0x7E, 0x7F, 0x06, 0x01, 0xF7);
+
+        assertEquals(Arrays.asList("F0 7E 7F 06 01 F7"), messages);
+        assertEquals(Arrays.asList(playout(base + 20)), times);
+        buffer.drain(Long.MAX_VALUE);
+        assertEquals("90 3C 64", messages.get(1));
+    }
+
+    @Test
+    public void full_oldestSentEarly() throws IOException {
+        JitterBuffer buffer = buffer(new MediaClock(0), 2);
+        add(buffer, base + 20, 0x90, 62, 100);
+        add(buffer, base + 10, 0x90, 60, 100);
+        add(buffer, base + 30, 0x90, 64, 100);
+        assertEquals(Arrays.asList("90 3C 64"), messages);
+
+        buffer.drain(Long.MAX_VALUE);
+        assertEquals(Arrays.asList("90 3C 64", "90 3E 64", "90 40 64"), messages);
+    }
+
+    @Test
+    public void senderClockWraps() throws IOException {
+        // the sender's 32-bit timestamps wrap between the two messages
+        JitterBuffer buffer = buffer(new MediaClock(0x100000000L + OFFSET - 1000), JitterBuffer.DEFAULT_CAPACITY);
+        add(buffer, base + 2000, 0x80, 60, 0);
+        add(buffer, base, 0x90, 60, 100);
+
+        buffer.drain(Long.MAX_VALUE);
+        assertEquals(Arrays.asList("90 3C 64", "80 3C 00"), messages);
+        assertEquals(Arrays.asList(playout(base), playout(base + 2000)), times);
+    }
+}
@@ -0,0 +1,181 @@
+package com.minz.midi;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sends journalled packets with {@link RtpMidiEncoder}, drops some of them
+ * and checks what {@link RtpMidiDecoder} restores, and how RS feedback
+ * moves the checkpoint.
+ */
+public class RecoveryJournalTest {
+    private DatagramChannel sender;
+    private DatagramChannel receiver;
+    private RtpMidiEncoder encoder;
+    private final List<String> messages = new ArrayList<>();
+    private final RtpMidiDecoder decoder = new RtpMidiDecoder(new RtpMidiDecoder.Listener() {
+        @Override
+        public void onMessage(byte[] data, int offset, int count, long timestamp) {
+            messages.add(hex(data, offset, count));
+        }
+    });
+
+    @Before
+    public void open() throws IOException {
+        sender = DatagramChannel.open();
+        sender.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        receiver = DatagramChannel.open();
+        receiver.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        encoder = new RtpMidiEncoder(sender, (InetSocketAddress) receiver.getLocalAddress(), 0x12345678L);
+        encoder.setJournal(true);
+    }
+
+    @After
+    public void close() throws IOException {
+        sender.close();
+        receiver.close();
+    }
+
+    private static String hex(byte[] data, int offset, int count) {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            s.append(String.format(i == 0 ? "%02X" : " %02X", data[offset + i]));
+        }
+        return s.toString();
+    }
+
+    private void send(int... bytes) throws IOException {
+        for (int i = 0; i < bytes.length; ) {
+            int length = bytes[i] >= 0xC0 && bytes[i] < 0xE0 ? 2 : 3;
+            byte[] command = new byte[length];
+            for (int k = 0; k < length; k++) {
+                command[k] = (byte) bytes[i + k];
+            }
+            encoder.addCommand(command, 0, length, 1000);
+            i += length;
+        }
+        encoder.flush();
+    }
+
+    /**
+     * Receives the next packet, decoding it unless it is to be lost.
+     * @return true if the packet carries a journal
+     */
+    private boolean receive(boolean lost) throws IOException {
+        ByteBuffer packet = ByteBuffer.allocate(RtpMidiEncoder.MAX_PACKET_SIZE);
+        receiver.receive(packet);
+        if (!lost) {
+            assertTrue(decoder.decode(packet.array(), 0, packet.position()));
+        }
+        return (packet.get(RtpMidiEncoder.RTP_HEADER_SIZE) & RtpMidiEncoder.FLAG_J) != 0;
+    }
+
+    @Test
+    public void journalCoversUnacknowledged() throws IOException {
+        send(0x90, 60, 100);
+        send(0x90, 62, 100);
+        send(0x90, 64, 100);
+
+        // the first packet has nothing before it to cover
+        assertFalse(receive(true));
+        assertTrue(receive(true));
+        assertTrue(receive(true));
+    }
+
+    @Test
+    public void receiverFeedback_movesCheckpoint() throws IOException {
+        send(0x90, 60, 100);
+        send(0x90, 62, 100);
+        assertEquals(1, encoder.journal().checkpointPacket());
+
+        encoder.acknowledge(2);
+        assertEquals(3, encoder.journal().checkpointPacket());
+        // an older RS does not move it back
+        encoder.acknowledge(1);
+        assertEquals(3, encoder.journal().checkpointPacket());
+
+        // everything before is acknowledged, so packet 3 needs no journal
+        send(0x90, 64, 100);
+        receive(true);
+        receive(true);
+        assertFalse(receive(false));
+        assertEquals(Arrays.asList("90 40 64"), messages);
+    }
+
+    @Test
+    public void droppedPackets_stateRecovered() throws IOException {
+        send(0x90, 60, 100);
+        send(0xB0, 7, 90, 0xC0, 5, 0xE0, 0, 64, 0x90, 62, 100);
+        send(0x80, 60, 0);
+        send(0x90, 64, 100);
+        receive(false);
+        receive(true);
+        receive(true);
+        receive(false);
+
+        assertEquals(2, decoder.lostPackets());
+        // the journal's commands come first, in chapter order, then the packet's own
+        assertEquals(Arrays.asList(
+                "90 3C 64",
+                "C0 05", "B0 07 5A", "E0 00 40", "90 3E 64", "80 3C 00",
+                "90 40 64"), messages);
+        assertEquals(5, decoder.recoveredCommands());
+    }
+
+    @Test
+    public void programChange_bankAtTheTime() throws IOException {
+        send(0x90, 60, 100);
+        // only the bank MSB is sent, and it changes again after the program
+        send(0xB0, 0, 2, 0xC0, 5);
+        send(0xB0, 0, 3);
+        send(0x90, 64, 100);
+        receive(false);
+        receive(true);
+        receive(true);
+        receive(false);
+
+        // no LSB, and the bank the program was picked from comes before it
+        assertEquals(Arrays.asList(
+                "90 3C 64",
+                "B0 00 02", "C0 05", "B0 00 03",
+                "90 40 64"), messages);
+    }
+
+    @Test
+    public void nothingLost_nothingRecovered() throws IOException {
+        send(0x90, 60, 100);
+        send(0xB0, 7, 90);
+        receive(false);
+        receive(false);
+
+        assertEquals(Arrays.asList("90 3C 64", "B0 07 5A"), messages);
+        assertEquals(0, decoder.recoveredCommands());
+    }
+
+    @Test
+    public void fanOut_checkpointWaitsForEveryPeer() throws IOException {
+        RtpMidiEncoder.Peer second = encoder.addPeer((InetSocketAddress) receiver.getLocalAddress(), 0x9ABCDEFL, 0);
+        send(0x90, 60, 100);
+        send(0x90, 62, 100);
+        send(0x90, 64, 100);
+
+        encoder.acknowledge(3);
+        assertEquals(1, encoder.journal().checkpointPacket());
+        encoder.acknowledge(second, 2);
+        assertEquals(3, encoder.journal().checkpointPacket());
+        encoder.removePeer(second);
+        assertEquals(4, encoder.journal().checkpointPacket());
+    }
+}
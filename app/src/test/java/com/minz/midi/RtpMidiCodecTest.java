@@ -0,0 +1,307 @@
+package com.minz.midi;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sends MIDI through {@link RtpMidiEncoder} over loopback and checks the
+ * command lists that arrive, and what {@link RtpMidiDecoder} makes of them.
+ */
+public class RtpMidiCodecTest {
+    private DatagramChannel sender;
+    private DatagramChannel receiver;
+    private RtpMidiEncoder encoder;
+    private final List<byte[]> messages = new ArrayList<>();
+    private final RtpMidiDecoder decoder = new RtpMidiDecoder(new RtpMidiDecoder.Listener() {
+        @Override
+        public void onMessage(byte[] data, int offset, int count, long timestamp) {
+            messages.add(Arrays.copyOfRange(data, offset, offset + count));
+        }
+    });
+    private long received;
+
+    @Before
+    public void open() throws IOException {
+        sender = DatagramChannel.open();
+        sender.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        receiver = DatagramChannel.open();
+        receiver.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        encoder = new RtpMidiEncoder(sender, (InetSocketAddress) receiver.getLocalAddress(), 0x12345678L);
+    }
+
+    @After
+    public void close() throws IOException {
+        sender.close();
+        receiver.close();
+    }
+
+    /**
+     * Receives the next packet.
+     * @return its MIDI command list
+     */
+    private byte[] receiveList() throws IOException {
+        ByteBuffer packet = ByteBuffer.allocate(RtpMidiEncoder.MAX_PACKET_SIZE);
+        receiver.receive(packet);
+        byte[] data = packet.array();
+        received++;
+        int header = data[RtpMidiEncoder.RTP_HEADER_SIZE] & 0xFF;
+        int start = RtpMidiEncoder.RTP_HEADER_SIZE + 1;
+        int length = header & 0x0F;
+        if ((header & RtpMidiEncoder.FLAG_B) != 0) {
+            length = length << 8 | data[start++] & 0xFF;
+        }
+        assertEquals(start + length, packet.position());
+        return Arrays.copyOfRange(data, start, start + length);
+    }
+
+    /**
+     * Decodes every packet the encoder sent since the last receive.
+     */
+    private void decodeSent() throws IOException {
+        ByteBuffer packet = ByteBuffer.allocate(RtpMidiEncoder.MAX_PACKET_SIZE);
+        for (; received < encoder.packetsSent(); received++) {
+            packet.clear();
+            receiver.receive(packet);
+            assertTrue(decoder.decode(packet.array(), 0, packet.position()));
+        }
+    }
+
+    private void assertMessages(byte[]... expected) {
+        assertEquals(expected.length, messages.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], messages.get(i));
+        }
+    }
+
+    private void add(int... bytes) throws IOException {
+        encoder.addCommand(bytes(bytes), 0, bytes.length, 1000);
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] b = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            b[i] = (byte) values[i];
+        }
+        return b;
+    }
+
+    @Test
+    public void runningStatus_statusBytesLeftOut() throws IOException {
+        encoder.setRunningStatus(true);
+        add(0x90, 60, 100);
+        add(0x90, 62, 100);
+        // real-time leaves running status alone
+        add(0xF8);
+        add(0x90, 64, 100);
+        add(0xC0, 5);
+        add(0xC0, 6);
+        // system common cancels it
+        add(0xF2, 1, 2);
+        add(0x90, 60, 0);
+        encoder.flush();
+
+        assertEquals(1, encoder.packetsSent());
+        assertEquals(3, encoder.runningStatusBytesSaved());
+        // each command after the first follows a zero delta time
+        assertArrayEquals(bytes(
+                0x90, 60, 100, 0, 62, 100, 0, 0xF8, 0, 64, 100,
+                0, 0xC0, 5, 0, 6, 0, 0xF2, 1, 2, 0, 0x90, 60, 0), receiveList());
+    }
+
+    @Test
+    public void runningStatus_notCarriedToNextPacket() throws IOException {
+        encoder.setRunningStatus(true);
+        add(0x90, 60, 100);
+        encoder.flush();
+        add(0x90, 62, 100);
+        encoder.flush();
+
+        assertEquals(0, encoder.runningStatusBytesSaved());
+        assertArrayEquals(bytes(0x90, 60, 100), receiveList());
+        assertArrayEquals(bytes(0x90, 62, 100), receiveList());
+    }
+
+    @Test
+    public void runningStatus_offByDefault() throws IOException {
+        add(0x90, 60, 100);
+        add(0x90, 62, 100);
+        encoder.flush();
+
+        assertEquals(0, encoder.runningStatusBytesSaved());
+        assertArrayEquals(bytes(0x90, 60, 100, 0, 0x90, 62, 100), receiveList());
+    }
+
+    @Test
+    public void segmentedSysEx_framing() throws IOException {
+        encoder.setMtu(RtpMidiEncoder.MIN_MTU);
+        byte[] dump = new byte[1000];
+        for (int i = 0; i < dump.length; i++) {
+            dump[i] = (byte) (i & 0x7F);
+        }
+        // arrives in pieces, as from onSend
+        encoder.addSysEx(dump, 0, 300, true, false, 1000);
+        encoder.addSysEx(dump, 300, 700, false, true, 1001);
+        encoder.flush();
+
+        assertTrue(encoder.packetsSent() > 1);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (long k = 0; k < encoder.packetsSent(); k++) {
+            byte[] list = receiveList();
+            assertTrue(RtpMidiEncoder.LIST_OFFSET + list.length <= RtpMidiEncoder.MIN_MTU - RtpMidiEncoder.IP_UDP_HEADER_SIZE);
+            boolean first = k == 0;
+            boolean last = k == encoder.packetsSent() - 1;
+            // F0..F0, then F7..F0, and F7..F7 to finish
+            assertEquals(first ? 0xF0 : 0xF7, list[0] & 0xFF);
+            assertEquals(last ? 0xF7 : 0xF0, list[list.length - 1] & 0xFF);
+            data.write(list, 1, list.length - 2);
+        }
+        assertArrayEquals(dump, data.toByteArray());
+    }
+
+    @Test
+    public void shortSysEx_notSegmented() throws IOException {
+        add(0x90, 60, 100);
+        encoder.addSysEx(bytes(0x7E, 0x7F, 0x06, 0x01), 0, 4, true, true, 1000);
+        add(0x80, 60, 0);
+        encoder.flush();
+
+        assertArrayEquals(bytes(0x90, 60, 100, 0, 0xF0, 0x7E, 0x7F, 0x06, 0x01, 0xF7, 0, 0x80, 60, 0), receiveList());
+    }
+
+    @Test
+    public void runningStatus_roundTrip() throws IOException {
+        encoder.setRunningStatus(true);
+        add(0x90, 60, 100);
+        add(0x90, 62, 100);
+        add(0xF8);
+        add(0x90, 64, 100);
+        add(0xC0, 5);
+        add(0xC0, 6);
+        add(0xF2, 1, 2);
+        add(0x90, 60, 0);
+        encoder.flush();
+        add(0x90, 62, 0);
+        encoder.flush();
+        decodeSent();
+
+        assertMessages(
+                bytes(0x90, 60, 100), bytes(0x90, 62, 100), bytes(0xF8), bytes(0x90, 64, 100),
+                bytes(0xC0, 5), bytes(0xC0, 6), bytes(0xF2, 1, 2), bytes(0x90, 60, 0), bytes(0x90, 62, 0));
+    }
+
+    @Test
+    public void segmentedSysEx_roundTrip() throws IOException {
+        encoder.setMtu(RtpMidiEncoder.MIN_MTU);
+        byte[] dump = new byte[1000];
+        for (int i = 0; i < dump.length; i++) {
+            dump[i] = (byte) (i & 0x7F);
+        }
+        add(0x90, 60, 100);
+        encoder.addSysEx(dump, 0, 300, true, false, 1000);
+        encoder.addSysEx(dump, 300, 700, false, true, 1001);
+        add(0x80, 60, 0);
+        encoder.flush();
+        decodeSent();
+
+        ByteArrayOutputStream sysEx = new ByteArrayOutputStream();
+        for (byte[] message : messages.subList(1, messages.size() - 1)) {
+            sysEx.write(message, 0, message.length);
+        }
+        byte[] framed = new byte[dump.length + 2];
+        framed[0] = (byte) 0xF0;
+        System.arraycopy(dump, 0, framed, 1, dump.length);
+        framed[framed.length - 1] = (byte) 0xF7;
+        assertArrayEquals(framed, sysEx.toByteArray());
+        assertArrayEquals(bytes(0x90, 60, 100), messages.get(0));
+        assertArrayEquals(bytes(0x80, 60, 0), messages.get(messages.size() - 1));
+    }
+
+    @Test
+    public void parser_feedsEncoder() throws IOException {
+        encoder.setRunningStatus(true);
+        MidiStreamParser parser = new MidiStreamParser(new MidiStreamParser.Listener() {
+            @Override
+            public void onMessage(byte[] data, int offset, int count, long timestamp) {
+                try {
+                    encoder.addCommand(data, offset, count, timestamp);
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+
+            @Override
+            public void onSysEx(byte[] data, int offset, int count, boolean start, boolean end, long timestamp) {
+                try {
+                    encoder.addSysEx(data, offset, count, start, end, timestamp);
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+
+            @Override
+            public void onSysExCancelled(long timestamp) {
+                try {
+                    encoder.cancelSysEx(timestamp);
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        // running status in the device stream, split mid message, a clock
+        // inside a command and a SysEx cut short by a note
+        byte[] stream = bytes(0x90, 60, 100, 62, 0xF8, 100, 0xF0, 1, 2, 0x80, 60, 0, 0xF0, 3, 0xF7);
+        parser.feed(stream, 0, 4, 1000);
+        parser.feed(stream, 4, stream.length - 4, 1000);
+        encoder.flush();
+        decodeSent();
+
+        assertMessages(bytes(0x90, 60, 100), bytes(0xF8), bytes(0x90, 62, 100), bytes(0x80, 60, 0), bytes(0xF0, 3, 0xF7));
+        assertEquals(0, parser.droppedBytes());
+    }
+
+    @Test
+    public void cancelledSysEx_notCompleted() throws IOException {
+        encoder.setMtu(RtpMidiEncoder.MIN_MTU);
+        byte[] dump = new byte[300];
+        encoder.addSysEx(dump, 0, dump.length, true, false, 1000);
+        encoder.cancelSysEx(1001);
+        add(0x90, 60, 100);
+        encoder.flush();
+        decodeSent();
+
+        for (byte[] message : messages) {
+            assertFalse((message[message.length - 1] & 0xFF) == 0xF7);
+        }
+        assertArrayEquals(bytes(0x90, 60, 100), messages.get(messages.size() - 1));
+    }
+
+    @Test
+    public void cancelledSysEx_endsWithF4() throws IOException {
+        encoder.addSysEx(bytes(1, 2), 0, 2, true, false, 1000);
+        encoder.cancelSysEx(1000);
+        add(0x90, 60, 100);
+        encoder.flush();
+        // cancelled after its segment went out: an empty cancelled segment
+        encoder.addSysEx(bytes(3), 0, 1, true, false, 1000);
+        encoder.flush();
+        encoder.cancelSysEx(1000);
+        encoder.flush();
+
+        assertArrayEquals(bytes(0xF0, 1, 2, 0xF4, 0, 0x90, 60, 100), receiveList());
+        assertArrayEquals(bytes(0xF0, 3, 0xF0), receiveList());
+        assertArrayEquals(bytes(0xF7, 0xF4), receiveList());
+    }
+}
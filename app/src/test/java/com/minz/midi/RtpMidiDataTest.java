@@ -0,0 +1,126 @@
+package com.minz.midi;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads and writes RTP-MIDI data packets with {@link RtpMidiData}.
+ */
+public class RtpMidiDataTest {
+    // 20 bytes, too long for the short command section header
+    private static final byte[] LIST = {
+            (byte) 0x90, 60, 100, 0, 62, 100, 10, (byte) 0xB0, 7, 90,
+            (byte) 0x81, 0, (byte) 0x80, 60, 0, 0, 62, 0, 0, (byte) 0xF8 };
+    // A flag, one channel journal, checkpoint 0x1234, then channel 0 with chapter W
+    private static final byte[] JOURNAL = { 0x20, 0x12, 0x34, 0x00, 0x05, 0x10, 0x40, 0x00 };
+
+    private static RtpMidiData packet(byte[] list, byte[] journal) {
+        RtpMidiData data = new RtpMidiData();
+        data.setSequenceNumber(0xBEEF);
+        data.setTimestamp(0xFEDCBA98L);
+        data.setSsrc(0x01020304L);
+        data.setFlagZ(true);
+        data.setCommandList(list, 0, list.length);
+        data.setJournal(journal, 0, journal.length);
+        data._check();
+        return data;
+    }
+
+    @Test
+    public void longHeaderAndJournal_roundTrip() {
+        byte[] bytes = packet(LIST, JOURNAL)._toByteArray();
+        assertEquals(RtpMidiData.HEADER_SIZE + 2 + LIST.length + JOURNAL.length, bytes.length);
+        int flags = bytes[RtpMidiData.HEADER_SIZE] & 0xFF;
+        assertEquals(RtpMidiData.FLAG_B | RtpMidiData.FLAG_J | RtpMidiData.FLAG_Z, flags & 0xF0);
+
+        RtpMidiData read = new RtpMidiData();
+        read._read(new ByteBufferKaitaiStream(bytes));
+        assertEquals(0xBEEF, read.sequenceNumber());
+        assertEquals(0xFEDCBA98L, read.timestamp());
+        assertEquals(0x01020304L, read.ssrc());
+        assertTrue(read.flagB());
+        assertTrue(read.flagJ());
+        assertTrue(read.flagZ());
+        assertFalse(read.flagP());
+        assertEquals(LIST.length, read.listLength());
+        assertArrayEquals(LIST, Arrays.copyOfRange(bytes, read.listOffset(), read.listOffset() + read.listLength()));
+        assertEquals(JOURNAL.length, read.journalLength());
+        assertEquals(0x20, read.journalFlags());
+        assertEquals(0, read.totchan());
+        assertEquals(0x1234, read.checkpointSeqnum());
+        assertEquals(bytes.length, read.packetLength());
+
+        // written back from the ranges it was read from
+        RtpMidiData copy = new RtpMidiData();
+        copy.setSequenceNumber(read.sequenceNumber());
+        copy.setTimestamp(read.timestamp());
+        copy.setSsrc(read.ssrc());
+        copy.setFlagZ(read.flagZ());
+        copy.setCommandList(bytes, read.listOffset(), read.listLength());
+        copy.setJournal(bytes, read.journalOffset(), read.journalLength());
+        assertArrayEquals(bytes, copy._toByteArray());
+    }
+
+    @Test
+    public void staticAccessors_matchRead() {
+        byte[] bytes = packet(LIST, JOURNAL)._toByteArray();
+        assertTrue(RtpMidiData.isValid(bytes, 0, bytes.length));
+        assertEquals(0xBEEF, RtpMidiData.sequenceNumber(bytes, 0));
+        assertEquals(0xFEDCBA98L, RtpMidiData.timestamp(bytes, 0));
+        assertEquals(0x01020304L, RtpMidiData.ssrc(bytes, 0));
+        assertEquals(RtpMidiData.HEADER_SIZE, RtpMidiData.commandSectionOffset(bytes, 0, bytes.length));
+
+        RtpMidiData.putSequenceNumber(bytes, 0, 7);
+        RtpMidiData.putTimestamp(bytes, 0, 8);
+        RtpMidiData.putSsrc(bytes, 0, 9);
+        RtpMidiData read = new RtpMidiData();
+        read._read(new ByteBufferKaitaiStream(bytes));
+        assertEquals(7, read.sequenceNumber());
+        assertEquals(8, read.timestamp());
+        assertEquals(9, read.ssrc());
+    }
+
+    @Test
+    public void streamAndStruct_reused() {
+        byte[] first = packet(LIST, JOURNAL)._toByteArray();
+        byte[] second = packet(Arrays.copyOf(LIST, 3), new byte[0])._toByteArray();
+        assertEquals(RtpMidiData.HEADER_SIZE + 1 + 3, second.length);
+
+        RtpMidiData read = new RtpMidiData();
+        ByteBufferKaitaiStream io = ByteBufferKaitaiStream.obtain(ByteBuffer.wrap(first));
+        try {
+            read._read(io);
+            assertTrue(read.flagB());
+            assertEquals(JOURNAL.length, read.journalLength());
+
+            read._read(io.reset(second, 0, second.length));
+            assertFalse(read.flagB());
+            assertFalse(read.flagJ());
+            assertEquals(3, read.listLength());
+            assertEquals(RtpMidiData.HEADER_SIZE + 1, read.listOffset());
+            assertEquals(0, read.journalLength());
+            assertEquals(second.length, read.packetLength());
+
+            read._read(io.reset(first, 0, first.length));
+            assertTrue(read.flagB());
+            assertEquals(LIST.length, read.listLength());
+            assertEquals(0x1234, read.checkpointSeqnum());
+        } finally {
+            io.recycle();
+        }
+
+        // and written into a reused buffer
+        ByteBuffer buffer = ByteBuffer.allocate(RtpMidiEncoder.MAX_PACKET_SIZE);
+        for (byte[] expected : new byte[][] { first, second, first }) {
+            RtpMidiData data = expected == second ? packet(Arrays.copyOf(LIST, 3), new byte[0]) : packet(LIST, JOURNAL);
+            buffer.clear();
+            data._write(buffer);
+            buffer.flip();
+            assertArrayEquals(expected, Arrays.copyOf(buffer.array(), buffer.limit()));
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.minz.midi;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link SessionTable} probing, including probe runs that wrap from
+ * the last slot to the first, and removal without tombstones.
+ */
+public class SessionTableTest {
+    private static final int MASK = SessionTable.DEFAULT_CAPACITY - 1;
+
+    /**
+     * @return the first count keys from start on whose home slot is the given one
+     */
+    private static long[] keysAt(int slot, long start, int count) {
+        long[] keys = new long[count];
+        for (long key = start; count > 0; key++) {
+            if (SessionTable.slot(key, MASK) == slot) {
+                keys[keys.length - count--] = key;
+            }
+        }
+        return keys;
+    }
+
+    @Test
+    public void wrappingCluster_insertLookupDelete() {
+        long[] last = keysAt(MASK, 1, 3);
+        long[] first = keysAt(0, 1, 1);
+        long[] second = keysAt(1, 1, 1);
+        SessionTable<String> table = new SessionTable<>();
+        // slots 15, 0 and 1 for the first three, then 2 and 3 as they are taken
+        assertNull(table.put(last[0], "a"));
+        assertNull(table.put(last[1], "b"));
+        assertNull(table.put(last[2], "c"));
+        assertNull(table.put(first[0], "d"));
+        assertNull(table.put(second[0], "e"));
+        assertEquals(5, table.size());
+        assertEquals("a", table.get(last[0]));
+        assertEquals("c", table.get(last[2]));
+        assertEquals("d", table.get(first[0]));
+        assertEquals("e", table.get(second[0]));
+        assertNull(table.get(keysAt(MASK, last[2] + 1, 1)[0]));
+
+        // replacing keeps the slot and the size
+        assertEquals("b", table.put(last[1], "B"));
+        assertEquals(5, table.size());
+
+        // the rest of the run shifts back across the wrap
+        assertEquals("a", table.remove(last[0]));
+        assertNull(table.get(last[0]));
+        assertEquals("B", table.get(last[1]));
+        assertEquals("c", table.get(last[2]));
+        assertEquals("d", table.get(first[0]));
+        assertEquals("e", table.get(second[0]));
+
+        // and again from the middle of the run
+        assertEquals("c", table.remove(last[2]));
+        assertEquals("d", table.get(first[0]));
+        assertEquals("e", table.get(second[0]));
+        assertNull(table.remove(last[2]));
+        assertEquals(3, table.size());
+
+        assertEquals("B", table.remove(last[1]));
+        assertEquals("d", table.remove(first[0]));
+        assertEquals("e", table.remove(second[0]));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void matchesHashMap() {
+        Random random = new Random(4);
+        SessionTable<Long> table = new SessionTable<>(2);
+        Map<Long, Long> expected = new HashMap<>();
+        for (int k = 0; k < 20000; k++) {
+            // few distinct keys, so removes and replacements are frequent
+            long key = random.nextInt(300) & 0xFFFFFFFFL;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), table.remove(key));
+            } else {
+                Long value = (long) k;
+                assertEquals(expected.put(key, value), table.put(key, value));
+            }
+            assertEquals(expected.size(), table.size());
+        }
+        for (long key = 0; key < 300; key++) {
+            assertEquals(expected.get(key), table.get(key));
+        }
+    }
+
+    @Test
+    public void growsPastHalfFull() {
+        SessionTable<Integer> table = new SessionTable<>(4);
+        for (int k = 0; k < 1000; k++) {
+            table.put(0xFFFFFFFFL - k, k);
+        }
+        for (int k = 0; k < 1000; k += 2) {
+            assertEquals(k, (int) table.remove(0xFFFFFFFFL - k));
+        }
+        assertEquals(500, table.size());
+        for (int k = 0; k < 1000; k++) {
+            assertEquals(k % 2 == 0 ? null : Integer.valueOf(k), table.get(0xFFFFFFFFL - k));
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.minz.midi;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Queues SysEx in a {@link SysExPacer}, drains it through the encoder and
+ * decodes what arrives.
+ */
+public class SysExPacerTest {
+    private DatagramChannel sender;
+    private DatagramChannel receiver;
+    private RtpMidiEncoder encoder;
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    private final RtpMidiDecoder decoder = new RtpMidiDecoder(new RtpMidiDecoder.Listener() {
+        @Override
+        public void onMessage(byte[] data, int offset, int count, long timestamp) {
+            received.write(data, offset, count);
+        }
+    });
+    private long packetsRead;
+
+    @Before
+    public void open() throws IOException {
+        sender = DatagramChannel.open();
+        sender.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        receiver = DatagramChannel.open();
+        receiver.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        encoder = new RtpMidiEncoder(sender, (InetSocketAddress) receiver.getLocalAddress(), 0x12345678L);
+    }
+
+    @After
+    public void close() throws IOException {
+        sender.close();
+        receiver.close();
+    }
+
+    private static byte[] data(int count, int value) {
+        byte[] data = new byte[count];
+        for (int i = 0; i < count; i++) {
+            data[i] = (byte) value;
+        }
+        return data;
+    }
+
+    /**
+     * Drains the pacer and decodes every packet it sent.
+     */
+    private void drainAll(SysExPacer pacer) throws Exception {
+        for (long wait; (wait = pacer.drain(1000)) >= 0; ) {
+            Thread.sleep(wait);
+        }
+        ByteBuffer packet = ByteBuffer.allocate(RtpMidiEncoder.MAX_PACKET_SIZE);
+        for (; packetsRead < encoder.packetsSent(); packetsRead++) {
+            packet.clear();
+            receiver.receive(packet);
+            assertTrue(decoder.decode(packet.array(), 0, packet.position()));
+        }
+    }
+
+    @Test
+    public void fullRing_grows() throws Exception {
+        SysExPacer pacer = new SysExPacer(encoder, 16, 4096, 1000000);
+        assertTrue(pacer.write(data(10, 1), 0, 10, true, false));
+        // past the initial capacity, and no drain needed as one is already due
+        assertFalse(pacer.write(data(1000, 2), 0, 1000, false, false));
+        assertFalse(pacer.write(data(10, 3), 0, 10, false, true));
+        assertEquals(0, pacer.droppedMessages());
+        drainAll(pacer);
+
+        byte[] bytes = received.toByteArray();
+        assertEquals(1022, bytes.length);
+        assertEquals(0xF0, bytes[0] & 0xFF);
+        assertEquals(2, bytes[500]);
+        assertEquals(0xF7, bytes[bytes.length - 1] & 0xFF);
+    }
+
+    @Test
+    public void tooLarge_cancelledWithoutWaiting() throws Exception {
+        SysExPacer pacer = new SysExPacer(encoder, 16, 64, 1000000);
+        assertTrue(pacer.write(data(40, 1), 0, 40, true, false));
+        // does not fit even the largest ring: the message is cancelled
+        pacer.write(data(40, 2), 0, 40, false, false);
+        pacer.write(data(40, 3), 0, 40, false, true);
+        assertEquals(1, pacer.droppedMessages());
+        // the next message goes through
+        pacer.write(data(4, 4), 0, 4, true, true);
+        drainAll(pacer);
+
+        // the receiver discards the cancelled message, the next one is whole
+        assertArrayEquals(new byte[] { (byte) 0xF0, 4, 4, 4, 4, (byte) 0xF7 }, received.toByteArray());
+    }
+
+    @Test
+    public void progress_perMessage() throws Exception {
+        SysExPacer pacer = new SysExPacer(encoder);
+        final List<Long> sent = new ArrayList<>();
+        pacer.setProgressListener(new SysExPacer.ProgressListener() {
+            @Override
+            public void onProgress(long bytesSent, long bytesPending, long bytesPerSecond) {
+                sent.add(bytesSent);
+            }
+        });
+        // the ring empties between the two parts of the first message
+        pacer.write(data(10, 1), 0, 10, true, false);
+        drainAll(pacer);
+        pacer.write(data(10, 2), 0, 10, false, true);
+        drainAll(pacer);
+        pacer.write(data(4, 3), 0, 4, true, true);
+        drainAll(pacer);
+
+        assertEquals(Arrays.asList(11L, 22L, 6L), sent);
+    }
+
+    @Test
+    public void closed_writesIgnored() {
+        SysExPacer pacer = new SysExPacer(encoder);
+        pacer.close();
+        assertFalse(pacer.write(data(10, 1), 0, 10, true, true));
+        assertFalse(pacer.cancel());
+        assertTrue(pacer.isEmpty());
+    }
+}